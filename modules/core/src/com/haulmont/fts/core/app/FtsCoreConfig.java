@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.app;
+
+import com.haulmont.cuba.core.config.Config;
+import com.haulmont.cuba.core.config.Property;
+import com.haulmont.cuba.core.config.Source;
+import com.haulmont.cuba.core.config.SourceType;
+import com.haulmont.cuba.core.config.defaults.DefaultBoolean;
+import com.haulmont.cuba.core.config.defaults.DefaultInt;
+import com.haulmont.cuba.core.config.defaults.DefaultLong;
+
+/**
+ * Middleware-only parameters of the full-text search engine that complement
+ * {@link com.haulmont.cuba.core.global.FtsConfig}.
+ *
+ * @version $Id$
+ */
+@Source(type = SourceType.DATABASE)
+public interface FtsCoreConfig extends Config {
+
+    /**
+     * @return maximum time in milliseconds that indexed changes may stay uncommitted in the shared index writer
+     */
+    @Property("cuba.fts.commitInterval")
+    @DefaultLong(10000)
+    long getCommitInterval();
+    void setCommitInterval(long value);
+
+    /**
+     * @return number of uncommitted queue items after which the shared index writer is committed
+     */
+    @Property("cuba.fts.commitDocCount")
+    @DefaultInt(1000)
+    int getCommitDocCount();
+    void setCommitDocCount(int value);
+
+    /**
+     * @return period in milliseconds of the background refresh of the near-real-time searcher
+     */
+    @Property("cuba.fts.searcherRefreshInterval")
+    @DefaultLong(1000)
+    long getSearcherRefreshInterval();
+    void setSearcherRefreshInterval(long value);
+
+    /**
+     * @return number of threads building index documents of a queue batch concurrently. 1 means the batch is
+     * processed sequentially in the calling thread
+     */
+    @Property("cuba.fts.indexingThreads")
+    @DefaultInt(1)
+    int getIndexingThreads();
+    void setIndexingThreads(int value);
+
+    /**
+     * Number of workers processing the queue in parallel inside this node. Each worker claims its own items by
+     * locking them in the database and writes them to the index of the node. The workers share the commits made
+     * by {@link #getCommitDocCount()} and {@link #getCommitInterval()}. The queue of an indexing host must
+     * still be processed by a single node, as every node has its own index.
+     * Used only on PostgreSQL and MS SQL Server, otherwise the queue is processed by a single worker.
+     */
+    @Property("cuba.fts.queueWorkers")
+    @DefaultInt(1)
+    int getQueueWorkers();
+    void setQueueWorkers(int value);
+
+    /**
+     * @return time in milliseconds between committing a change of an indexed entity and processing the queue.
+     * Changes committed within this time are indexed together. A negative value disables processing on commit,
+     * leaving only the scheduled processing
+     */
+    @Property("cuba.fts.queueWakeUpDelay")
+    @DefaultLong(500)
+    long getQueueWakeUpDelay();
+    void setQueueWakeUpDelay(long value);
+
+    /**
+     * @return number of failed attempts to index an entity instance after which its change is removed from the queue
+     * to the dead letters. 0 means unlimited
+     */
+    @Property("cuba.fts.queueMaxAttempts")
+    @DefaultInt(5)
+    int getQueueMaxAttempts();
+    void setQueueMaxAttempts(int value);
+
+    /**
+     * @return maximum number of stored dead letters. When the limit is reached, failing changes stay in the queue
+     * and are retried with the growing delay
+     */
+    @Property("cuba.fts.maxDeadLetters")
+    @DefaultInt(1000)
+    int getMaxDeadLetters();
+    void setMaxDeadLetters(int value);
+
+    /**
+     * @return time in milliseconds after which an entity instance failed to be indexed is retried. Doubled after
+     * each next failure
+     */
+    @Property("cuba.fts.queueRetryDelay")
+    @DefaultLong(10000)
+    long getQueueRetryDelay();
+    void setQueueRetryDelay(long value);
+
+    /**
+     * @return maximum number of characters extracted from a single file, the rest of the content is not indexed.
+     * -1 means unlimited
+     */
+    @Property("cuba.fts.maxFileContentLength")
+    @DefaultInt(1000000)
+    int getMaxFileContentLength();
+    void setMaxFileContentLength(int value);
+
+    /**
+     * @return directory of the extracted file content cache. If not set, {@code ftscontent} directory inside
+     * {@link com.haulmont.cuba.core.global.GlobalConfig#getDataDir()} is used
+     */
+    @Property("cuba.fts.contentCacheDir")
+    String getContentCacheDir();
+    void setContentCacheDir(String value);
+
+    /**
+     * @return maximum size in bytes of the extracted file content cache. 0 disables the cache
+     */
+    @Property("cuba.fts.contentCacheMaxSize")
+    @DefaultLong(268435456)
+    long getContentCacheMaxSize();
+    void setContentCacheMaxSize(long value);
+
+    /**
+     * @return number of threads parsing file content. 0 means files are parsed in the indexing threads without
+     * a time limit
+     */
+    @Property("cuba.fts.fileParsingThreads")
+    @DefaultInt(4)
+    int getFileParsingThreads();
+    void setFileParsingThreads(int value);
+
+    /**
+     * @return maximum time in milliseconds of parsing a single file, counted from the start of parsing. A file that
+     * is not parsed in time is indexed by name only
+     */
+    @Property("cuba.fts.fileParsingTimeout")
+    @DefaultLong(60000)
+    long getFileParsingTimeout();
+    void setFileParsingTimeout(long value);
+
+    /**
+     * @return maximum size in bytes of a file whose content is indexed. Larger files are indexed by name only.
+     * 0 means unlimited
+     */
+    @Property("cuba.fts.maxFileSize")
+    @DefaultLong(0)
+    long getMaxFileSize();
+    void setMaxFileSize(long value);
+
+    /**
+     * @return number of threads writing the new index when the index is rebuilt
+     */
+    @Property("cuba.fts.rebuildThreads")
+    @DefaultInt(4)
+    int getRebuildThreads();
+    void setRebuildThreads(int value);
+
+    /**
+     * @return size in megabytes of the index writer RAM buffer used when the index is rebuilt
+     */
+    @Property("cuba.fts.rebuildRamBufferSize")
+    @DefaultInt(256)
+    int getRebuildRamBufferSize();
+    void setRebuildRamBufferSize(int value);
+
+    /**
+     * @return number of instances in a range of the partitioned reindexing
+     */
+    @Property("cuba.fts.reindexRangeSize")
+    @DefaultInt(100000)
+    int getReindexRangeSize();
+    void setReindexRangeSize(int value);
+
+    /**
+     * @return number of threads of this node processing ranges of the partitioned reindexing
+     */
+    @Property("cuba.fts.reindexThreads")
+    @DefaultInt(4)
+    int getReindexThreads();
+    void setReindexThreads(int value);
+
+    /**
+     * @return time in milliseconds a range is reserved for a worker without saving its progress. After that
+     * the range can be claimed by another worker
+     */
+    @Property("cuba.fts.reindexLeaseTime")
+    @DefaultLong(600000)
+    long getReindexLeaseTime();
+    void setReindexLeaseTime(long value);
+
+    /**
+     * @return maximum number of attempts to process a range of the partitioned reindexing
+     */
+    @Property("cuba.fts.reindexRangeMaxAttempts")
+    @DefaultInt(3)
+    int getReindexRangeMaxAttempts();
+    void setReindexRangeMaxAttempts(int value);
+
+    /**
+     * @return role of this node in the index replication: {@code primary} indexes the queue and publishes
+     * the index commits, {@code replica} only copies them and serves searches. Empty if the index is not replicated
+     */
+    @Property("cuba.fts.replicationRole")
+    String getReplicationRole();
+    void setReplicationRole(String value);
+
+    /**
+     * @return directory shared by the primary and replica nodes where the index commits are published.
+     * Replicas check it for new commits with the period set in {@link #getSearcherRefreshInterval()}
+     */
+    @Property("cuba.fts.replicationDir")
+    String getReplicationDir();
+    void setReplicationDir(String value);
+
+    /**
+     * @return whether this node only searches the index written by another node, e.g. in a shared directory.
+     * Such a node never opens an index writer and reopens the searcher when a new commit appears.
+     * Replica nodes are always read-only
+     */
+    @Property("cuba.fts.readOnly")
+    @DefaultBoolean(false)
+    boolean getReadOnly();
+    void setReadOnly(boolean value);
+
+    /**
+     * @return whether to store the instance names in the index, so that search results are shown without loading
+     * the instances from the database. Instances of entities restricted by security constraints for the current user
+     * are still loaded. Takes effect for the instances indexed after the change.
+     * <p>The trade-off is that a stored name can differ from the actual one: it is formatted in the locale of the
+     * indexing node rather than the user's one, and it is not updated when the name depends on attributes of
+     * a referenced instance that changes. Changes of the instance's own name attributes reindex it.</p>
+     */
+    @Property("cuba.fts.storeInstanceName")
+    @DefaultBoolean(false)
+    boolean getStoreInstanceName();
+    void setStoreInstanceName(boolean value);
+
+    /**
+     * @return access-control attributes indexed as terms to filter search results of users having constraints,
+     * as {@code entityName.propertyPath=sessionAttribute} entries separated by commas,
+     * e.g. {@code sales$Order.department=departmentId}. The listed entities must be reindexed after the change,
+     * until then their instances indexed without the attribute are not found by restricted users
+     * @see com.haulmont.fts.core.sys.SecurityFilters
+     */
+    @Property("cuba.fts.securityAttributes")
+    String getSecurityAttributes();
+    void setSecurityAttributes(String value);
+
+    /**
+     * @return maximum size in bytes of the in-memory search result cache. 0 disables the cache
+     */
+    @Property("cuba.fts.resultCacheMaxSize")
+    @DefaultLong(16777216)
+    long getResultCacheMaxSize();
+    void setResultCacheMaxSize(long value);
+}
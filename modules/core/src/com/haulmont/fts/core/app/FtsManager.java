@@ -4,7 +4,7 @@
  */
 package com.haulmont.fts.core.app;
 
-import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.haulmont.chile.core.model.MetaClass;
 import com.haulmont.cuba.core.EntityManager;
 import com.haulmont.cuba.core.Persistence;
@@ -13,31 +13,48 @@ import com.haulmont.cuba.core.Transaction;
 import com.haulmont.cuba.core.app.FtsSender;
 import com.haulmont.cuba.core.app.ServerInfoAPI;
 import com.haulmont.cuba.core.entity.BaseEntity;
+import com.haulmont.cuba.core.entity.Entity;
 import com.haulmont.cuba.core.entity.FtsChangeType;
 import com.haulmont.cuba.core.entity.FtsQueue;
+import com.haulmont.cuba.core.entity.SoftDelete;
 import com.haulmont.cuba.core.global.*;
 import com.haulmont.cuba.core.sys.AppContext;
+import com.haulmont.cuba.core.sys.SecurityContext;
 import com.haulmont.cuba.core.sys.persistence.DbTypeConverter;
 import com.haulmont.cuba.security.app.Authenticated;
 import com.haulmont.cuba.security.app.Authentication;
 import com.haulmont.fts.core.sys.*;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexUpgrader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import javax.annotation.ManagedBean;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.persistence.Table;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -56,15 +73,70 @@ public class FtsManager implements FtsManagerAPI {
     protected volatile boolean writing;
 
     protected final ReentrantLock reindexLock = new ReentrantLock();
+    protected final ReentrantLock reindexRangesLock = new ReentrantLock();
     protected volatile boolean reindexing;
     protected volatile Queue<String> reindexEntitiesQueue = new ConcurrentLinkedQueue<>();
 
     protected volatile Directory directory;
 
+    protected volatile IndexWriter indexWriter;
+
+    protected volatile IndexSearchers searchers;
+
+    protected volatile ExecutorService indexingExecutor;
+
+    protected volatile FileContentCache fileContentCache;
+
+    protected volatile SecurityFilters securityFilters;
+
+    protected volatile SearchResultCache searchResultCache;
+
+    protected volatile FileParsingExecutor fileParsingExecutor;
+
+    protected volatile ExecutorService queueWorkersExecutor;
+
+    protected volatile IndexReplication indexReplication;
+
+    protected volatile ScheduledExecutorService wakeUpExecutor;
+
+    protected final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+    protected volatile DeadLetterHandler deadLetterHandler;
+
+    protected static final String ROLE_PRIMARY = "primary";
+
+    protected static final String ROLE_REPLICA = "replica";
+
+    protected volatile ReindexProgress reindexProgress;
+
+    /**
+     * Changes indexed from the queue while the index is being rebuilt, replayed to the new index before the swap.
+     * Accessed under {@link #writeLock}.
+     */
+    protected volatile QueueCoalescer rebuildJournal;
+
+    protected volatile IndexRebuilder indexRebuilder;
+
+    protected static final int INDEXING_TASK_MAX_SIZE = 100;
+
+    /**
+     * Queue items that have been written to the shared index writer but not committed yet. They are removed from
+     * the queue table only after the commit, so a crash between indexing and commit does not lose changes.
+     */
+    protected List<FtsQueue> uncommittedQueueItems = new ArrayList<>();
+
+    protected long lastCommitTime = System.currentTimeMillis();
+
     protected static final int DEL_CHUNK = 10;
 
+    protected static final int LOAD_CHUNK = 100;
+
     protected FtsConfig config;
 
+    protected FtsCoreConfig coreConfig;
+
+    protected GlobalConfig globalConfig;
+
     protected String serverId;
 
     @Inject
@@ -85,9 +157,27 @@ public class FtsManager implements FtsManagerAPI {
     @Inject
     protected FtsSender ftsSender;
 
+    @Inject
+    protected UserSessionSource userSessionSource;
+
     @Inject
     public void setConfiguration(Configuration configuration) {
         config = configuration.getConfig(FtsConfig.class);
+        coreConfig = configuration.getConfig(FtsCoreConfig.class);
+        globalConfig = configuration.getConfig(GlobalConfig.class);
+    }
+
+    /**
+     * Restores the entities waiting for asynchronous reindexing, so reindexing interrupted by a restart
+     * continues from the saved cursors.
+     */
+    @PostConstruct
+    public void init() {
+        List<String> entities = getReindexProgress().getEntities();
+        if (!entities.isEmpty()) {
+            log.info("Resuming reindexing of " + entities);
+            reindexEntitiesQueue.addAll(entities);
+        }
     }
 
     @Inject
@@ -166,6 +256,20 @@ public class FtsManager implements FtsManagerAPI {
             String p = property.indexOf(".") < 0 ? property : property.substring(0, property.indexOf("."));
             ownProperties.add(p);
         }
+        // a change of the attributes of the instance name must update the stored name
+        if (coreConfig.getStoreInstanceName()) {
+            View minimalView = metadata.getViewRepository().getView(descr.getMetaClass(), View.MINIMAL);
+            for (ViewProperty viewProperty : minimalView.getProperties()) {
+                ownProperties.add(viewProperty.getName());
+            }
+        }
+        // a change of the access-control attribute must update the indexed term
+        SecurityFilters securityFilters = getSecurityFilters();
+        if (securityFilters != null) {
+            String property = securityFilters.getProperties().get(descr.getMetaClass().getName());
+            if (property != null)
+                ownProperties.add(property.indexOf(".") < 0 ? property : property.substring(0, property.indexOf(".")));
+        }
 
         Set<String> dirty = persistence.getTools().getDirtyFields(entity);
         for (String s : dirty) {
@@ -189,6 +293,14 @@ public class FtsManager implements FtsManagerAPI {
         return list;
     }
 
+    /**
+     * @return whether the instance loaded for indexing satisfies the searchableIf script of its entity
+     */
+    protected boolean isSearchable(String entityName, Entity entity) {
+        EntityDescr descr = getDescrByName().get(entityName);
+        return StringUtils.isBlank(descr.getSearchableIfScript()) || runSearchableIf((BaseEntity) entity, descr);
+    }
+
     protected boolean runSearchableIf(BaseEntity entity, EntityDescr descr) {
         Map<String, Object> params = new HashMap<>();
         params.put("entity", entity);
@@ -203,12 +315,10 @@ public class FtsManager implements FtsManagerAPI {
         if (!config.getEnabled())
             return 0;
 
-        if (!reindexEntitiesQueue.isEmpty()) {
-            log.debug("Unable to process queue: there are entities that are waiting for reindex");
+        // the index is written on the primary node only
+        if (isReadOnly())
             return 0;
-        }
 
-        log.debug("Start processing queue");
         int count = 0;
         boolean locked = writeLock.tryLock();
         if (!locked) {
@@ -220,103 +330,660 @@ public class FtsManager implements FtsManagerAPI {
         try {
             writing = true;
 
-            List<FtsQueue> list = loadQueuedItems();
-            list = new ArrayList<>(list);
-            if (!list.isEmpty()) {
-                count = initIndexer(list);
-                removeQueuedItems(list);
+            // reindexing advances by its own cursor, so the queue is processed while entities wait for reindexing
+            log.debug("Start processing queue");
+            if (coreConfig.getQueueWorkers() > 1 && getClaimQueueSql() != null) {
+                count = processClaimedQueue();
+            } else {
+                List<FtsQueue> list = loadQueuedItems();
+                if (!list.isEmpty()) {
+                    count = initIndexer(list);
+                    uncommittedQueueItems.addAll(list);
+                    addToRebuildJournal(list);
+                }
             }
+            commitIfNeeded();
+            log.debug(count + " queue items successfully processed");
         } finally {
             writeLock.unlock();
             writing = false;
             authentication.end();
         }
-        log.debug(count + " queue items successfully processed");
         return count;
     }
 
+    /**
+     * Loads the next batch from two lanes. The interactive lane contains changes made by users
+     * ({@link FtsChangeType#UPDATE} and {@link FtsChangeType#DELETE}) and is taken first, so live changes do not
+     * wait for a bulk reindexing. The bulk lane contains {@link FtsChangeType#INSERT} items enqueued by reindexing
+     * and fills the remaining capacity of the batch.
+     *
+     * @return queue items in the order of enqueueing
+     */
     protected List<FtsQueue> loadQueuedItems() {
-        List<FtsQueue> list;
-
-        boolean useServerId = !config.getIndexingHosts().isEmpty();
         int maxSize = config.getIndexingBatchSize();
 
+        // uncommitted items are still in the table, skip them
+        Set<UUID> excludedIds = new HashSet<>(uncommittedQueueItems.size());
+        for (FtsQueue item : uncommittedQueueItems) {
+            excludedIds.add(item.getId());
+        }
+        // as well as items of instances waiting for a retry
+        Set<UUID> delayedEntityIds = getDeadLetterHandler().getDelayedIds(System.currentTimeMillis());
+
+        List<FtsQueue> list = new ArrayList<>();
         Transaction tx = persistence.createTransaction();
         try {
             EntityManager em = persistence.getEntityManager();
-            String queryString = String.format("select q from sys$FtsQueue q where q.fake = false and %s order by q.createTs",
-                    (useServerId ? "q.indexingHost = ?1" : "q.indexingHost is null"));
-            Query query = em.createQuery(queryString);
-            if (useServerId)
-                query.setParameter(1, serverId);
-            query.setMaxResults(maxSize);
-            list = query.getResultList();
+
+            list.addAll(loadLane(em, "q.changeType <> 'I'", maxSize, excludedIds, delayedEntityIds));
+            if (!list.isEmpty()) {
+                // pending bulk items of the same instances must be coalesced with the interactive ones in the order
+                // of enqueueing, otherwise an older insertion would be applied after a newer deletion
+                list.addAll(loadBulkItemsOf(em, list, excludedIds));
+                for (FtsQueue item : list) {
+                    excludedIds.add(item.getId());
+                }
+            }
+            if (list.size() < maxSize)
+                list.addAll(loadLane(em, "q.changeType = 'I'", maxSize - list.size(), excludedIds,
+                        delayedEntityIds));
+
             tx.commit();
         } finally {
             tx.end();
         }
+
+        Collections.sort(list, new Comparator<FtsQueue>() {
+            @Override
+            public int compare(FtsQueue q1, FtsQueue q2) {
+                return q1.getCreateTs().compareTo(q2.getCreateTs());
+            }
+        });
         return list;
     }
 
-    protected void removeQueuedItems(List<FtsQueue> list) {
-        Transaction tx = persistence.createTransaction();
+    protected List<FtsQueue> loadLane(EntityManager em, String laneCondition, int maxSize, Set<UUID> excludedIds,
+                                      Set<UUID> excludedEntityIds) {
+        boolean useServerId = !config.getIndexingHosts().isEmpty();
+        String queryString = String.format(
+                "select q from sys$FtsQueue q where q.fake = false and %s and %s order by q.createTs",
+                laneCondition, (useServerId ? "q.indexingHost = ?1" : "q.indexingHost is null"));
+        Query query = em.createQuery(queryString);
+        if (useServerId)
+            query.setParameter(1, serverId);
+        query.setMaxResults(maxSize + excludedIds.size() + excludedEntityIds.size());
+        List<FtsQueue> list = query.getResultList();
+
+        List<FtsQueue> result = new ArrayList<>(Math.min(list.size(), maxSize));
+        for (FtsQueue item : list) {
+            if (result.size() >= maxSize)
+                break;
+            if (!excludedIds.contains(item.getId()) && !excludedEntityIds.contains(item.getEntityId()))
+                result.add(item);
+        }
+        return result;
+    }
+
+    protected List<FtsQueue> loadBulkItemsOf(EntityManager em, List<FtsQueue> items, Set<UUID> excludedIds) {
+        boolean useServerId = !config.getIndexingHosts().isEmpty();
+        List<UUID> entityIds = new ArrayList<>(items.size());
+        for (FtsQueue item : items) {
+            entityIds.add(item.getEntityId());
+        }
+
+        List<FtsQueue> result = new ArrayList<>();
+        for (int i = 0; i < entityIds.size(); i += LOAD_CHUNK) {
+            String queryString = String.format(
+                    "select q from sys$FtsQueue q where q.fake = false and q.changeType = 'I' and %s " +
+                            "and q.entityId in :entityIds",
+                    (useServerId ? "q.indexingHost = :indexingHost" : "q.indexingHost is null"));
+            Query query = em.createQuery(queryString);
+            if (useServerId)
+                query.setParameter("indexingHost", serverId);
+            query.setParameter("entityIds", entityIds.subList(i, Math.min(i + LOAD_CHUNK, entityIds.size())));
+            List<FtsQueue> list = query.getResultList();
+            for (FtsQueue item : list) {
+                if (!excludedIds.contains(item.getId()))
+                    result.add(item);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void queueChanged() {
+        long delay = coreConfig.getQueueWakeUpDelay();
+        if (delay < 0 || isReadOnly() || !config.getEnabled())
+            return;
+        // changes committed within the delay are processed together
+        if (!wakeUpPending.compareAndSet(false, true))
+            return;
+        getWakeUpExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                wakeUpPending.set(false);
+                drainQueue();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes the queue until it is empty and makes the changes searchable.
+     */
+    protected void drainQueue() {
+        if (writeLock.isLocked()) {
+            // try again later rather than wait for the running operation
+            queueChanged();
+            return;
+        }
         try {
-            EntityManager em = persistence.getEntityManager();
+            int total = 0;
+            int count;
+            do {
+                count = processQueue();
+                total += count;
+            } while (count > 0 && !Thread.currentThread().isInterrupted());
+            if (total > 0)
+                getSearchers().refresh();
+        } catch (Throwable e) {
+            log.error("Error processing FTS queue", e);
+        }
+    }
 
-            for (int i = 0; i < list.size(); i += DEL_CHUNK) {
-                StringBuilder sb = new StringBuilder("delete from SYS_FTS_QUEUE where ID in (");
-                List<FtsQueue> sublist = list.subList(i, Math.min(i + DEL_CHUNK, list.size()));
-                for (int idx = 0; idx < sublist.size(); idx++) {
-                    sb.append("?");
-                    if (idx < sublist.size() - 1)
-                        sb.append(", ");
+    protected ScheduledExecutorService getWakeUpExecutor() {
+        if (wakeUpExecutor == null) {
+            synchronized (this) {
+                if (wakeUpExecutor == null) {
+                    wakeUpExecutor = Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("FtsQueueWakeUp-%d").setDaemon(true).build());
                 }
-                sb.append(")");
+            }
+        }
+        return wakeUpExecutor;
+    }
 
-                DbTypeConverter converter = persistence.getDbTypeConverter();
+    protected void addToRebuildJournal(List<FtsQueue> list) {
+        QueueCoalescer journal = rebuildJournal;
+        if (journal == null)
+            return;
+        synchronized (journal) {
+            for (FtsQueue ftsQueue : list) {
+                journal.add(ftsQueue.getEntityName(), ftsQueue.getEntityId(), ftsQueue.getChangeType());
+            }
+        }
+    }
 
-                Query query = em.createNativeQuery(sb.toString());
-                for (int idx = 0; idx < sublist.size(); idx++) {
-                    try {
-                        query.setParameter(idx + 1, converter.getSqlObject(sublist.get(idx).getId()));
-                    } catch (SQLException e) {
-                        throw new RuntimeException("Unable to set query parameter", e);
-                    }
+    /**
+     * Processes the queue by {@link FtsCoreConfig#getQueueWorkers()} workers of this node in parallel, sharing
+     * the index writer of the node, see {@link QueueClaimer}. The processed items are removed from the queue by
+     * the next commit of the writer. Must be invoked under {@link #writeLock}.
+     */
+    protected int processClaimedQueue() {
+        // create the writer before workers use it
+        getIndexWriter();
+
+        int workers = coreConfig.getQueueWorkers();
+        int batchSize = Math.max(config.getIndexingBatchSize() / workers, 1);
+        Set<UUID> uncommittedIds = new HashSet<>(uncommittedQueueItems.size());
+        for (FtsQueue item : uncommittedQueueItems) {
+            uncommittedIds.add(item.getId());
+        }
+        final List<FtsQueue> processed = Collections.synchronizedList(new ArrayList<FtsQueue>());
+        QueueClaimer claimer = new QueueClaimer(getQueueWorkersExecutor(), getClaimQueueSql(),
+                config.getIndexingHosts().isEmpty() ? null : serverId) {
+            @Override
+            protected Set<UUID> getDelayedEntityIds() {
+                return getDeadLetterHandler().getDelayedIds(System.currentTimeMillis());
+            }
+
+            @Override
+            protected int process(List<FtsQueue> list) {
+                int count = initIndexer(list);
+                addToRebuildJournal(list);
+                processed.addAll(list);
+                return count;
+            }
+        };
+        try {
+            return claimer.process(workers, batchSize, uncommittedIds);
+        } finally {
+            uncommittedQueueItems.addAll(processed);
+        }
+    }
+
+    /**
+     * @return locking select claiming queue items, or null if the database does not support it
+     */
+    @Nullable
+    protected String getClaimQueueSql() {
+        return QueueClaimer.getClaimSql(AppContext.getProperty("cuba.dbmsType"), !config.getIndexingHosts().isEmpty());
+    }
+
+    protected ExecutorService getQueueWorkersExecutor() {
+        if (queueWorkersExecutor == null) {
+            synchronized (this) {
+                if (queueWorkersExecutor == null) {
+                    queueWorkersExecutor = Executors.newCachedThreadPool(
+                            new ThreadFactoryBuilder().setNameFormat("FtsQueueWorker-%d").setDaemon(true).build());
                 }
-                query.executeUpdate();
             }
+        }
+        return queueWorkersExecutor;
+    }
 
+    protected void removeQueuedItems(List<FtsQueue> list) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            removeQueuedItems(persistence.getEntityManager(), list);
             tx.commit();
         } finally {
             tx.end();
         }
     }
 
+    protected void removeQueuedItems(EntityManager em, List<FtsQueue> list) {
+        for (int i = 0; i < list.size(); i += DEL_CHUNK) {
+            StringBuilder sb = new StringBuilder("delete from SYS_FTS_QUEUE where ID in (");
+            List<FtsQueue> sublist = list.subList(i, Math.min(i + DEL_CHUNK, list.size()));
+            for (int idx = 0; idx < sublist.size(); idx++) {
+                sb.append("?");
+                if (idx < sublist.size() - 1)
+                    sb.append(", ");
+            }
+            sb.append(")");
+
+            DbTypeConverter converter = persistence.getDbTypeConverter();
+
+            Query query = em.createNativeQuery(sb.toString());
+            for (int idx = 0; idx < sublist.size(); idx++) {
+                try {
+                    query.setParameter(idx + 1, converter.getSqlObject(sublist.get(idx).getId()));
+                } catch (SQLException e) {
+                    throw new RuntimeException("Unable to set query parameter", e);
+                }
+            }
+            query.executeUpdate();
+        }
+    }
+
     protected int initIndexer(List<FtsQueue> list) {
         LuceneIndexer indexer = createLuceneIndexer();
         List<FtsQueue> unindexed = new ArrayList<>(list.size());
         int count = 0;
-        try {
-            for (FtsQueue ftsQueue : list) {
-                try {
-                    indexer.indexEntity(ftsQueue.getEntityName(), ftsQueue.getEntityId(), ftsQueue.getChangeType());
-                    count++;
-                } catch (IndexingException e) {
-                    if (e.getEntityType() != IndexingException.EntityType.FILE)
-                        unindexed.add(ftsQueue);
+        // reduce the batch to one change per instance, grouped by entity to load instances of each entity
+        // by a single query
+        QueueCoalescer coalescer = new QueueCoalescer();
+        for (FtsQueue ftsQueue : list) {
+            FtsChangeType changeType = ftsQueue.getChangeType();
+            // an interactive change of the instance may have been indexed before its bulk item was enqueued,
+            // so bulk items replace the document instead of adding a duplicate
+            if (FtsChangeType.INSERT.equals(changeType))
+                changeType = FtsChangeType.UPDATE;
+            coalescer.add(ftsQueue.getEntityName(), ftsQueue.getEntityId(), changeType);
+        }
+        if (log.isDebugEnabled())
+            log.debug("Coalesced " + coalescer.getCount() + " queue items to " + coalescer.getCoalescedCount());
+
+        Map<UUID, IndexingException> errors = indexChanges(indexer, coalescer.getChanges());
+        Set<UUID> givenUpIds = getDeadLetterHandler().registerAttempts(coalescer.getChanges(), errors);
+
+        // all rows of a coalesced instance share its result and are removed from the queue together
+        for (FtsQueue ftsQueue : list) {
+            IndexingException e = errors.get(ftsQueue.getEntityId());
+            if (e == null) {
+                count++;
+            } else if (e.getEntityType() != IndexingException.EntityType.FILE
+                    && !givenUpIds.contains(ftsQueue.getEntityId())) {
+                unindexed.add(ftsQueue);
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            list.removeAll(unindexed);
+        }
+        return count;
+    }
+
+    /**
+     * Builds and writes documents for the given changes. If {@link FtsCoreConfig#getIndexingThreads()} is greater
+     * than 1, changes of each entity are split into chunks which are indexed concurrently by the indexing pool.
+     *
+     * @return exceptions for the instances that have not been indexed, by instance id
+     */
+    protected Map<UUID, IndexingException> indexChanges(final LuceneIndexer indexer,
+                                                        Map<String, Map<UUID, FtsChangeType>> changesByEntity) {
+        Map<UUID, IndexingException> errors = new HashMap<>();
+
+        int threads = coreConfig.getIndexingThreads();
+        if (threads <= 1) {
+            for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : changesByEntity.entrySet()) {
+                errors.putAll(indexer.indexEntities(entry.getKey(), entry.getValue()));
+            }
+            return errors;
+        }
+
+        final SecurityContext securityContext = AppContext.getSecurityContext();
+        List<Future<Map<UUID, IndexingException>>> futures = new ArrayList<>();
+        for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : changesByEntity.entrySet()) {
+            final String entityName = entry.getKey();
+            int taskSize = Math.min(INDEXING_TASK_MAX_SIZE, (entry.getValue().size() + threads - 1) / threads);
+
+            Map<UUID, FtsChangeType> chunk = new LinkedHashMap<>();
+            Iterator<Map.Entry<UUID, FtsChangeType>> iterator = entry.getValue().entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<UUID, FtsChangeType> change = iterator.next();
+                chunk.put(change.getKey(), change.getValue());
+                if (chunk.size() >= taskSize || !iterator.hasNext()) {
+                    final Map<UUID, FtsChangeType> changes = chunk;
+                    futures.add(getIndexingExecutor().submit(new Callable<Map<UUID, IndexingException>>() {
+                        @Override
+                        public Map<UUID, IndexingException> call() throws Exception {
+                            AppContext.setSecurityContext(securityContext);
+                            try {
+                                return indexer.indexEntities(entityName, changes);
+                            } finally {
+                                AppContext.setSecurityContext(null);
+                            }
+                        }
+                    }));
+                    chunk = new LinkedHashMap<>();
                 }
             }
-            if (!unindexed.isEmpty()) {
-                list.removeAll(unindexed);
+        }
+
+        // wait for all tasks to make sure none of them uses the indexer after the batch is finished
+        RuntimeException failure = null;
+        for (Future<Map<UUID, IndexingException>> future : futures) {
+            try {
+                errors.putAll(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ?
+                            (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                for (Future<Map<UUID, IndexingException>> f : futures) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while indexing", e);
             }
-        } finally {
-            indexer.close();
         }
-        return count;
+        if (failure != null)
+            throw failure;
+        return errors;
+    }
+
+    protected ExecutorService getIndexingExecutor() {
+        if (indexingExecutor == null) {
+            synchronized (this) {
+                if (indexingExecutor == null) {
+                    indexingExecutor = Executors.newFixedThreadPool(coreConfig.getIndexingThreads(),
+                            new ThreadFactoryBuilder().setNameFormat("FtsIndexer-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return indexingExecutor;
     }
 
     protected LuceneIndexer createLuceneIndexer() {
-        return new LuceneIndexer(getDescrByName(), getDirectory(), config.getStoreContentInIndex());
+        return createLuceneIndexer(getDirectory(), getIndexWriter());
+    }
+
+    protected LuceneIndexer createLuceneIndexer(Directory directory, IndexWriter writer) {
+        LuceneIndexer indexer = new LuceneIndexer(getDescrByName(), directory, writer,
+                config.getStoreContentInIndex());
+        indexer.setMaxFileContentLength(coreConfig.getMaxFileContentLength());
+        indexer.setFileContentCache(getFileContentCache());
+        indexer.setFileParsingBudget(getFileParsingExecutor(), coreConfig.getFileParsingTimeout(),
+                coreConfig.getMaxFileSize());
+        indexer.setStoreInstanceName(coreConfig.getStoreInstanceName());
+        SecurityFilters securityFilters = getSecurityFilters();
+        if (securityFilters != null)
+            indexer.setSecurityProperties(securityFilters.getProperties());
+        return indexer;
+    }
+
+    /**
+     * @return bounded pool parsing file content or null if files are parsed in the indexing threads
+     */
+    @Nullable
+    protected FileParsingExecutor getFileParsingExecutor() {
+        int threads = coreConfig.getFileParsingThreads();
+        if (threads <= 0)
+            return null;
+
+        if (fileParsingExecutor == null) {
+            synchronized (this) {
+                if (fileParsingExecutor == null) {
+                    fileParsingExecutor = new FileParsingExecutor(threads, threads * 100,
+                            new ThreadFactoryBuilder().setNameFormat("FtsFileParser-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return fileParsingExecutor;
+    }
+
+    @Override
+    public ReindexProgress getReindexProgress() {
+        if (reindexProgress == null) {
+            synchronized (this) {
+                if (reindexProgress == null) {
+                    File file = new File(globalConfig.getDataDir(), "fts-reindex.properties");
+                    reindexProgress = new ReindexProgress(file);
+                }
+            }
+        }
+        return reindexProgress;
+    }
+
+    @Nullable
+    @Override
+    public FileContentCache getFileContentCache() {
+        if (coreConfig.getContentCacheMaxSize() <= 0)
+            return null;
+
+        if (fileContentCache == null) {
+            synchronized (this) {
+                if (fileContentCache == null) {
+                    String dir = coreConfig.getContentCacheDir();
+                    if (StringUtils.isBlank(dir)) {
+                        Configuration configuration = AppBeans.get(Configuration.NAME);
+                        dir = configuration.getConfig(GlobalConfig.class).getDataDir() + "/ftscontent";
+                    }
+                    fileContentCache = new FileContentCache(new File(dir), coreConfig.getContentCacheMaxSize());
+                }
+            }
+        }
+        return fileContentCache;
+    }
+
+    @Nullable
+    @Override
+    public SearchResultCache getSearchResultCache() {
+        if (coreConfig.getResultCacheMaxSize() <= 0)
+            return null;
+
+        if (searchResultCache == null) {
+            synchronized (this) {
+                if (searchResultCache == null) {
+                    searchResultCache = new SearchResultCache(coreConfig.getResultCacheMaxSize());
+                }
+            }
+        }
+        return searchResultCache;
+    }
+
+    @Nullable
+    @Override
+    public SecurityFilters getSecurityFilters() {
+        String definition = StringUtils.trimToNull(coreConfig.getSecurityAttributes());
+        if (definition == null)
+            return null;
+
+        SecurityFilters filters = securityFilters;
+        // the cached filters are dropped when the definition changes
+        if (filters == null || !filters.getDefinition().equals(definition)) {
+            filters = new SecurityFilters(definition);
+            securityFilters = filters;
+        }
+        return filters;
+    }
+
+    /**
+     * @return the index writer shared by all write operations. Modifications must be made under {@link #writeLock}.
+     */
+    protected IndexWriter getIndexWriter() {
+        if (indexWriter == null) {
+            synchronized (this) {
+                if (indexWriter == null) {
+                    checkWritable();
+                    // the primary keeps the commits being published from deletion
+                    indexWriter = LuceneWriter.createWriter(getDirectory(), isReplicationPrimary() ?
+                            new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()) :
+                            new KeepOnlyLastCommitDeletionPolicy());
+                    lastCommitTime = System.currentTimeMillis();
+                }
+            }
+        }
+        return indexWriter;
+    }
+
+    /**
+     * Commits the shared writer if the number of uncommitted queue items or the time passed since the last commit
+     * exceed the values set in {@link FtsCoreConfig}. Must be invoked under {@link #writeLock}.
+     */
+    protected void commitIfNeeded() {
+        if (indexWriter == null || !indexWriter.hasUncommittedChanges() && uncommittedQueueItems.isEmpty())
+            return;
+
+        if (uncommittedQueueItems.size() >= coreConfig.getCommitDocCount()
+                || System.currentTimeMillis() - lastCommitTime >= coreConfig.getCommitInterval()) {
+            commitIndex();
+        }
+    }
+
+    /**
+     * @return searchers over the shared index writer, or over the last commit in the index directory on a read-only
+     * node. Refreshed in background with the period set in {@link FtsCoreConfig#getSearcherRefreshInterval()}.
+     */
+    protected IndexSearchers getSearchers() {
+        if (searchers == null) {
+            synchronized (this) {
+                if (searchers == null) {
+                    searchers = new IndexSearchers(coreConfig.getSearcherRefreshInterval(),
+                            new ThreadFactoryBuilder().setNameFormat("FtsSearcherRefresh-%d").setDaemon(true).build()) {
+                        @Override
+                        protected SearcherManager createSearcherManager() throws IOException {
+                            SearcherFactory searcherFactory = new WarmingSearcherFactory(getDescrByName().keySet());
+                            if (isReadOnly()) {
+                                if (isReplica())
+                                    replicateIndex();
+                                return new SearcherManager(getDirectory(), searcherFactory);
+                            } else {
+                                return new SearcherManager(getIndexWriter(), true, searcherFactory);
+                            }
+                        }
+
+                        @Override
+                        protected void refreshInBackground() {
+                            if (isReplica())
+                                replicateIndex();
+                            else
+                                refresh();
+                        }
+
+                        @Override
+                        protected void closed() {
+                            if (searchResultCache != null)
+                                searchResultCache.clear();
+                        }
+                    };
+                }
+            }
+        }
+        return searchers;
+    }
+
+    @Override
+    public IndexSearcher acquireSearcher() {
+        return getSearchers().acquire();
+    }
+
+    @Override
+    public void releaseSearcher(IndexSearcher searcher) {
+        getSearchers().release(searcher);
+    }
+
+    /**
+     * Commits the shared writer and removes the queue items indexed since the previous commit.
+     * Must be invoked under {@link #writeLock}.
+     */
+    protected void commitIndex() {
+        if (indexWriter == null)
+            return;
+
+        try {
+            indexWriter.commit();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to commit index", e);
+        }
+        lastCommitTime = System.currentTimeMillis();
+        if (isReplicationPrimary())
+            publishIndexAsync();
+
+        if (!uncommittedQueueItems.isEmpty()) {
+            log.debug("Index committed, removing " + uncommittedQueueItems.size() + " queue items");
+            removeQueuedItems(uncommittedQueueItems);
+            uncommittedQueueItems.clear();
+        }
+    }
+
+    /**
+     * Commits and closes the shared writer. Must be invoked under {@link #writeLock}.
+     */
+    protected void closeIndexWriter() {
+        // near-real-time readers are bound to the writer
+        getSearchers().close();
+
+        if (indexWriter == null)
+            return;
+
+        try {
+            commitIndex();
+        } finally {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                log.error("Error closing index writer", e);
+            }
+            indexWriter = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (searchers != null)
+            searchers.shutdown();
+        if (indexingExecutor != null)
+            indexingExecutor.shutdownNow();
+        if (fileParsingExecutor != null)
+            fileParsingExecutor.shutdownNow();
+        if (queueWorkersExecutor != null)
+            queueWorkersExecutor.shutdownNow();
+        if (indexReplication != null)
+            indexReplication.shutdown();
+        if (wakeUpExecutor != null)
+            wakeUpExecutor.shutdownNow();
+
+        writeLock.lock();
+        try {
+            closeIndexWriter();
+        } catch (Exception e) {
+            log.error("Error shutting down FTS index writer", e);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     protected FtsConfig getConfig() {
@@ -337,16 +1004,16 @@ public class FtsManager implements FtsManagerAPI {
         }
 
         authentication.begin();
-        LuceneWriter luceneWriter = new LuceneWriter(getDirectory());
         try {
             writing = true;
+            LuceneWriter luceneWriter = new LuceneWriter(getDirectory(), getIndexWriter());
             luceneWriter.optimize();
+            commitIndex();
             return "Done";
         } catch (Throwable e) {
             log.error("Error", e);
             return ExceptionUtils.getStackTrace(e);
         } finally {
-            luceneWriter.close();
             writeLock.unlock();
             writing = false;
             authentication.end();
@@ -355,12 +1022,30 @@ public class FtsManager implements FtsManagerAPI {
 
     @Override
     public String upgrade() {
-        IndexUpgrader upgrader = new IndexUpgrader(getDirectory(), Version.LUCENE_44);
+        boolean locked = writeLock.tryLock();
+        if (!locked) {
+            return "Unable to upgrade: writing at the moment";
+        }
+        boolean searchersLocked = false;
         try {
-            upgrader.upgrade();
-        } catch (IOException e) {
+            writing = true;
+            // taken before the monitor, see swapIndex()
+            searchersLocked = getSearchers().lock();
+            // the upgrader opens its own writer, so block lazy creation of the shared one until it finishes
+            synchronized (this) {
+                checkWritable();
+                closeIndexWriter();
+                IndexUpgrader upgrader = new IndexUpgrader(getDirectory(), Version.LUCENE_44);
+                upgrader.upgrade();
+            }
+        } catch (Throwable e) {
             log.error("Error", e);
             return ExceptionUtils.getStackTrace(e);
+        } finally {
+            if (searchersLocked)
+                getSearchers().unlock();
+            writeLock.unlock();
+            writing = false;
         }
         return "successful";
     }
@@ -376,12 +1061,12 @@ public class FtsManager implements FtsManagerAPI {
         if (!locked) {
             throw new IllegalStateException("Unable to delete index: writing at the moment");
         }
-        LuceneWriter writer = new LuceneWriter(getDirectory());
         try {
             writing = true;
+            LuceneWriter writer = new LuceneWriter(getDirectory(), getIndexWriter());
             writer.deleteIndexForEntity(entityName);
+            commitIndex();
         } finally {
-            writer.close();
             writeLock.unlock();
             writing = false;
         }
@@ -393,12 +1078,12 @@ public class FtsManager implements FtsManagerAPI {
         if (!locked) {
             throw new IllegalStateException("Unable to delete index: writing at the moment");
         }
-        LuceneWriter writer = new LuceneWriter(getDirectory());
         try {
             writing = true;
+            LuceneWriter writer = new LuceneWriter(getDirectory(), getIndexWriter());
             writer.deleteAll();
+            commitIndex();
         } finally {
-            writer.close();
             writeLock.unlock();
             writing = false;
         }
@@ -406,47 +1091,151 @@ public class FtsManager implements FtsManagerAPI {
 
     @Override
     public int reindexEntity(String entityName) {
-        int count = 0;
-
         MetaClass metaClass = metadata.getSession().getClass(entityName);
         if (metaClass == null)
             throw new IllegalArgumentException("MetaClass not found for " + entityName);
 
+        EntityDescr descr = getDescrByName().get(entityName);
+
         Transaction tx = persistence.createTransaction();
         try {
-            FtsSender sender = AppBeans.get(FtsSender.NAME);
+            ftsSender.emptyQueue(entityName);
+            if (descr == null) {
+                tx.commit();
+                return 0;
+            }
+            if (StringUtils.isBlank(descr.getSearchableIfScript())) {
+                String insertSql = getBulkEnqueueSql(metaClass);
+                if (insertSql != null) {
+                    int count = bulkEnqueue(entityName, insertSql);
+                    tx.commit();
+                    log.debug(count + " instances of " + entityName + " was added to the FTS queue");
+                    return count;
+                }
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+
+        int count = enqueueByChunks(entityName, StringUtils.isBlank(descr.getSearchableIfScript()) ? null : descr);
+        log.debug(count + " instances of " + entityName + " was added to the FTS queue");
+        return count;
+    }
 
-            sender.emptyQueue(entityName);
-            tx.commitRetaining();
+    /**
+     * Returns a native statement copying ids of all instances of the entity to the queue table by a single
+     * {@code insert ... select}, or null if the entity table or the database does not allow it. The statement
+     * expects the following parameters: created by, entity name, change type, source host, indexing host, fake.
+     */
+    @Nullable
+    protected String getBulkEnqueueSql(MetaClass metaClass) {
+        String idExpression;
+        String dbmsType = AppContext.getProperty("cuba.dbmsType");
+        if ("postgres".equals(dbmsType))
+            idExpression = "cast(md5(random()::text || clock_timestamp()::text || e.ID::text) as uuid)";
+        else if ("mssql".equals(dbmsType))
+            idExpression = "newid()";
+        else if ("oracle".equals(dbmsType))
+            idExpression = "rawtohex(sys_guid())";
+        else
+            return null;
+
+        // the entity must own the table completely, otherwise instances of other entities can be selected
+        Class<?> javaClass = metaClass.getJavaClass();
+        Table table = javaClass.getAnnotation(Table.class);
+        if (table == null || StringUtils.isBlank(table.name()))
+            return null;
+        for (MetaClass ancestor : metaClass.getAncestors()) {
+            if (ancestor.getJavaClass().getAnnotation(javax.persistence.Entity.class) != null)
+                return null;
+        }
 
-            EntityDescr descr = getDescrByName().get(entityName);
-            if (descr == null)
-                return count;
+        StringBuilder sb = new StringBuilder();
+        sb.append("insert into SYS_FTS_QUEUE (ID, CREATE_TS, CREATED_BY, ENTITY_ID, ENTITY_NAME, CHANGE_TYPE, ")
+                .append("SOURCE_HOST, INDEXING_HOST, FAKE) ")
+                .append("select ").append(idExpression).append(", current_timestamp, ?, e.ID, ?, ?, ?, ?, ? ")
+                .append("from ").append(table.name()).append(" e");
+        if (SoftDelete.class.isAssignableFrom(javaClass))
+            sb.append(" where e.DELETE_TS is null");
+        return sb.toString();
+    }
 
-            EntityManager em = persistence.getEntityManager();
+    /**
+     * Fills the queue by the bulk statement, once per indexing host.
+     */
+    protected int bulkEnqueue(String entityName, String insertSql) {
+        DbTypeConverter converter = persistence.getDbTypeConverter();
+        String createdBy = userSessionSource.checkCurrentUserSession() ?
+                userSessionSource.getUserSession().getUser().getLogin() : null;
 
-            if (StringUtils.isBlank(descr.getSearchableIfScript())) {
-                Query q = em.createQuery("select e.id from " + entityName + " e");
-                List<UUID> list = q.getResultList();
-                for (UUID id : list) {
-                    sender.enqueue(entityName, id, FtsChangeType.INSERT);
-                    count++;
-                }
-            } else {
-                Query q = em.createQuery("select e from " + entityName + " e");
-                List<BaseEntity> list = q.getResultList();
-                for (BaseEntity entity : list) {
-                    if (runSearchableIf(entity, descr)) {
-                        sender.enqueue(entityName, (UUID) entity.getId(), FtsChangeType.INSERT);
+        List<String> indexingHosts = config.getIndexingHosts();
+        List<String> hosts = indexingHosts.isEmpty() ? Collections.<String>singletonList(null) : indexingHosts;
+
+        EntityManager em = persistence.getEntityManager();
+        int count = 0;
+        for (String indexingHost : hosts) {
+            Query query = em.createNativeQuery(insertSql);
+            try {
+                query.setParameter(1, createdBy);
+                query.setParameter(2, entityName);
+                query.setParameter(3, FtsChangeType.INSERT.getId());
+                query.setParameter(4, serverId);
+                query.setParameter(5, indexingHost);
+                query.setParameter(6, converter.getSqlObject(Boolean.FALSE));
+            } catch (SQLException e) {
+                throw new RuntimeException("Unable to set query parameter", e);
+            }
+            // every host gets the same set of instances
+            count = query.executeUpdate();
+        }
+        return count;
+    }
+
+    /**
+     * Enqueues the instances reading them by chunks of {@link FtsConfig#getReindexBatchSize()} ordered by id,
+     * each chunk in its own transaction.
+     *
+     * @param descr description containing {@code searchableIf} script to check the loaded instances,
+     *              or null to enqueue all instances
+     */
+    protected int enqueueByChunks(String entityName, @Nullable EntityDescr descr) {
+        int count = 0;
+        int chunkSize = config.getReindexBatchSize();
+        UUID lastId = null;
+        while (true) {
+            Transaction tx = persistence.createTransaction();
+            try {
+                EntityManager em = persistence.getEntityManager();
+                Query query = em.createQuery((descr == null ? "select e.id" : "select e") + " from " + entityName
+                        + " e" + (lastId == null ? "" : " where e.id > :lastId") + " order by e.id");
+                if (lastId != null)
+                    query.setParameter("lastId", lastId);
+                query.setMaxResults(chunkSize);
+                List list = query.getResultList();
+
+                for (Object item : list) {
+                    if (descr == null) {
+                        lastId = (UUID) item;
+                        ftsSender.enqueue(entityName, lastId, FtsChangeType.INSERT);
                         count++;
+                    } else {
+                        BaseEntity entity = (BaseEntity) item;
+                        lastId = (UUID) entity.getId();
+                        if (runSearchableIf(entity, descr)) {
+                            ftsSender.enqueue(entityName, lastId, FtsChangeType.INSERT);
+                            count++;
+                        }
                     }
                 }
+                tx.commit();
+
+                if (list.size() < chunkSize)
+                    return count;
+            } finally {
+                tx.end();
             }
-            tx.commit();
-        } finally {
-            tx.end();
         }
-        return count;
     }
 
     @Override
@@ -459,14 +1248,7 @@ public class FtsManager implements FtsManagerAPI {
         if (descr == null)
             throw new IllegalArgumentException("FTS configuration not found for " + entityName);
 
-        Transaction tx = persistence.createTransaction();
-        try {
-            ftsSender.emptyQueue(entityName);
-            reindexEntitiesQueue.add(entityName);
-            tx.commit();
-        } finally {
-            tx.end();
-        }
+        createAsyncReindexer().start(entityName);
     }
 
     @Override
@@ -504,85 +1286,447 @@ public class FtsManager implements FtsManagerAPI {
         }
 
         authentication.begin();
-        Transaction tx = persistence.createTransaction();
         try {
             reindexing = true;
-            try {
-                String entityName = reindexEntitiesQueue.element();
-                int reindexBatchSize = config.getReindexBatchSize();
-                EntityManager em = persistence.getEntityManager();
+            return createAsyncReindexer().processNextBatch(config.getReindexBatchSize());
+        } finally {
+            reindexLock.unlock();
+            reindexing = false;
+            authentication.end();
+        }
+    }
 
-                EntityDescr entityDescr = getDescrByName().get(entityName);
-                String searchableIfScript = entityDescr.getSearchableIfScript();
-                if (Strings.isNullOrEmpty(searchableIfScript)) {
-                    List<UUID> ids = em.createQuery("select e.id from " + entityName + " e where e.id not in " +
-                            "(select q.entityId from sys$FtsQueue q where q.entityName = :entityName)", UUID.class)
-                            .setParameter("entityName", entityName)
-                            .setMaxResults(reindexBatchSize)
-                            .getResultList();
-                    for (UUID id : ids) {
-                        ftsSender.enqueue(entityName, id, FtsChangeType.INSERT);
-                    }
-                    tx.commit();
-                    if (ids.size() < reindexBatchSize) {
-                        reindexEntitiesQueue.remove();
-                    }
-                    log.debug(ids.size() + " instances of " + entityName + " was added to the FTS queue");
-                    return ids.size();
-                } else {
-                    List<BaseEntity> entities = em.createQuery("select e from " + entityName + " e where e.id not in " +
-                            "(select q.entityId from sys$FtsQueue q where q.entityName = :entityName)")
-                            .setParameter("entityName", entityName)
-                            .setMaxResults(reindexBatchSize)
-                            .getResultList();
-                    int count = 0;
-                    for (BaseEntity entity : entities) {
-                        if (runSearchableIf(entity, entityDescr)) {
-                            ftsSender.enqueue(entityName, (UUID) entity.getId(), FtsChangeType.INSERT);
-                            count++;
-                        } else {
-                            ftsSender.enqueueFake(entityName, (UUID) entity.getId());
-                        }
-                    }
-                    if (entities.size() < reindexBatchSize) {
-                        reindexEntitiesQueue.remove();
-                        ftsSender.emptyFakeQueue(entityName);
-                    }
-                    tx.commit();
-                    log.debug(entities.size() + " instances of " + entityName + " was processed. "
-                            + count + " of them was added to the FTS queue");
-                    return entities.size();
+    protected AsyncReindexer createAsyncReindexer() {
+        return new AsyncReindexer(getReindexProgress(), reindexEntitiesQueue, getDescrByName()) {
+            @Override
+            protected boolean accept(String entityName, Entity entity) {
+                return isSearchable(entityName, entity);
+            }
+        };
+    }
 
-                }
+    protected File getIndexDir() {
+        String dir = config.getIndexDir();
+        if (StringUtils.isBlank(dir)) {
+            Configuration configuration = AppBeans.get(Configuration.NAME);
+            dir = configuration.getConfig(GlobalConfig.class).getDataDir() + "/ftsindex";
+        }
+        return new File(dir);
+    }
+
+    @Override
+    public int rebuildIndex() {
+        checkWritable();
+        boolean locked = reindexLock.tryLock();
+        if (!locked)
+            throw new IllegalStateException("Unable to rebuild index: reindexing at the moment");
+
+        log.info("Start rebuilding index");
+        authentication.begin();
+        ExecutorService executor = null;
+        try {
+            reindexing = true;
+            int threads = Math.max(coreConfig.getRebuildThreads(), 1);
+
+            // from now on the changes indexed from the queue are collected to be replayed to the new index
+            writeLock.lock();
+            try {
+                rebuildJournal = new QueueCoalescer();
             } finally {
-                tx.end();
+                writeLock.unlock();
             }
+
+            executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setNameFormat("FtsRebuild-%d").setDaemon(true).build());
+            File shadowDir = new File(getIndexDir().getPath() + "-rebuild");
+            IndexRebuilder rebuilder = new IndexRebuilder(shadowDir, executor, threads,
+                    coreConfig.getRebuildRamBufferSize(), INDEXING_TASK_MAX_SIZE) {
+                @Override
+                protected LuceneIndexer createIndexer(Directory directory, IndexWriter writer) {
+                    return createLuceneIndexer(directory, writer);
+                }
+
+                @Override
+                protected boolean accept(String entityName, Entity entity) {
+                    return isSearchable(entityName, entity);
+                }
+
+                @Override
+                protected void complete() throws IOException {
+                    writeLock.lock();
+                    try {
+                        writing = true;
+                        QueueCoalescer journal = rebuildJournal;
+                        rebuildJournal = null;
+                        QueueCoalescer unindexed = finish(journal);
+                        swapIndex(getShadowDir());
+                        enqueue(unindexed);
+                    } finally {
+                        writing = false;
+                        writeLock.unlock();
+                    }
+                }
+            };
+            indexRebuilder = rebuilder;
+            int count = rebuilder.rebuild(getDescrByName().keySet());
+            log.info("Index is rebuilt. " + rebuilder.getStatus());
+            return count;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to rebuild index", e);
         } finally {
-            reindexLock.unlock();
+            rebuildJournal = null;
+            if (executor != null)
+                executor.shutdownNow();
             reindexing = false;
+            reindexLock.unlock();
             authentication.end();
         }
     }
 
+    @Nullable
+    @Override
+    public String getBulkIndexingStatus() {
+        IndexRebuilder rebuilder = indexRebuilder;
+        return rebuilder != null ? rebuilder.getStatus() : null;
+    }
+
+    @Override
+    public int partitionedReindexEntity(String entityName) {
+        MetaClass metaClass = metadata.getSession().getClass(entityName);
+        if (metaClass == null)
+            throw new IllegalArgumentException("MetaClass not found for " + entityName);
+        if (getDescrByName().get(entityName) == null)
+            throw new IllegalArgumentException("FTS configuration not found for " + entityName);
+        // the ranges belong to the index of this node
+        checkWritable();
+
+        return createReindexRangeProcessor().partition(entityName, Math.max(coreConfig.getReindexRangeSize(), 1));
+    }
+
+    @Override
+    public int partitionedReindexAll() {
+        int count = 0;
+        for (String entityName : getDescrByName().keySet()) {
+            count += partitionedReindexEntity(entityName);
+        }
+        return count;
+    }
+
+    @Override
+    public int processReindexRanges() {
+        if (!AppContext.isStarted())
+            return 0;
+
+        if (!config.getEnabled())
+            return 0;
+
+        // the index is written on the primary node only
+        if (isReadOnly())
+            return 0;
+
+        boolean locked = reindexRangesLock.tryLock();
+        if (!locked) {
+            log.debug("Unable to process reindex ranges: processing at the moment");
+            return 0;
+        }
+
+        authentication.begin();
+        ExecutorService executor = null;
+        try {
+            int threads = Math.max(coreConfig.getReindexThreads(), 1);
+            executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setNameFormat("FtsReindex-%d").setDaemon(true).build());
+            return createReindexRangeProcessor().process(executor, threads, serverId);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            reindexRangesLock.unlock();
+            authentication.end();
+        }
+    }
+
+    @Override
+    public String printReindexRanges() {
+        return createReindexRangeProcessor().print();
+    }
+
+    @Override
+    public boolean resetReindexRange(String entityName, int index) {
+        return createReindexRangeProcessor().reset(entityName, index);
+    }
+
+    protected ReindexRangeProcessor createReindexRangeProcessor() {
+        ReindexRangeProcessor processor = new ReindexRangeProcessor(getReindexRangeStore(), getDescrByName()) {
+            @Override
+            protected boolean accept(String entityName, Entity entity) {
+                return isSearchable(entityName, entity);
+            }
+
+            @Override
+            protected void failed(String entityName, Map<UUID, IndexingException> errors) {
+                QueueCoalescer changes = new QueueCoalescer();
+                for (Map.Entry<UUID, IndexingException> error : errors.entrySet()) {
+                    // failures of file content are not retried by the queue either
+                    if (error.getValue().getEntityType() != IndexingException.EntityType.FILE)
+                        changes.add(entityName, error.getKey(), FtsChangeType.UPDATE);
+                }
+                enqueue(changes);
+            }
+
+            @Override
+            protected LuceneIndexer createIndexer() {
+                return createLuceneIndexer();
+            }
+
+            @Override
+            protected void commit() {
+                writeLock.lock();
+                try {
+                    commitIndex();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        };
+        processor.setChunkSize(config.getReindexBatchSize());
+        processor.setCommitDocCount(coreConfig.getCommitDocCount());
+        processor.setLease(coreConfig.getReindexLeaseTime(), coreConfig.getReindexRangeMaxAttempts());
+        return processor;
+    }
+
+    protected ReindexRangeStore getReindexRangeStore() {
+        // every node writes to its own index, so the ranges are not shared with other nodes
+        return new ReindexRangeStore(serverId);
+    }
+
+    /**
+     * @return name distinguishing the index of this node in the records shared by the cluster
+     */
+    protected String getIndexScope() {
+        // every indexing host has its own index
+        return config.getIndexingHosts().isEmpty() ? "shared" : serverId;
+    }
+
+    /**
+     * @return handler of the queue items failing to be indexed, with the limits currently set in
+     * {@link FtsCoreConfig}
+     */
+    protected DeadLetterHandler getDeadLetterHandler() {
+        if (deadLetterHandler == null) {
+            synchronized (this) {
+                if (deadLetterHandler == null)
+                    deadLetterHandler = new DeadLetterHandler(getIndexScope());
+            }
+        }
+        deadLetterHandler.setLimits(coreConfig.getQueueMaxAttempts(), coreConfig.getQueueRetryDelay(),
+                coreConfig.getMaxDeadLetters());
+        return deadLetterHandler;
+    }
+
+    @Override
+    public String printDeadLetters() {
+        return getDeadLetterHandler().print();
+    }
+
+    @Override
+    public boolean retryDeadLetter(String entityName, UUID entityId) {
+        return getDeadLetterHandler().retry(entityName, entityId);
+    }
+
+    @Override
+    public int retryDeadLetters() {
+        return getDeadLetterHandler().retryAll();
+    }
+
+    /**
+     * Puts the changes to the queue, so they are retried and moved to the dead letters if they keep failing.
+     */
+    protected void enqueue(QueueCoalescer changes) {
+        if (changes.getCoalescedCount() == 0)
+            return;
+        log.warn(changes.getCoalescedCount() + " instances have not been indexed, putting them to the queue");
+        Transaction tx = persistence.createTransaction();
+        try {
+            for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : changes.getChanges().entrySet()) {
+                for (Map.Entry<UUID, FtsChangeType> change : entry.getValue().entrySet()) {
+                    ftsSender.enqueue(entry.getKey(), change.getKey(), change.getValue());
+                }
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * Replaces the index directory by the rebuilt one. Searches in progress are completed before the old index
+     * is closed and renamed, new searches wait for the replacement.
+     * Must be invoked under {@link #writeLock}.
+     */
+    protected void swapIndex(File newDir) throws IOException {
+        // taken before the monitor, as the searches holding the lock wait for the monitor to create the manager
+        boolean locked = getSearchers().lock();
+        try {
+            swapIndexDir(newDir);
+        } finally {
+            if (locked)
+                getSearchers().unlock();
+        }
+        // open the new index before the next search
+        getSearchers().getSearcherManager();
+        if (isReplicationPrimary())
+            publishIndexAsync();
+    }
+
+    protected void swapIndexDir(File newDir) throws IOException {
+        synchronized (this) {
+            closeIndexWriter();
+
+            File indexDir = getIndexDir();
+            File oldDir = new File(indexDir.getPath() + "-old");
+            FileUtils.deleteDirectory(oldDir);
+            if (directory != null) {
+                directory.close();
+                directory = null;
+            }
+            if (!indexDir.renameTo(oldDir))
+                throw new IOException("Unable to rename " + indexDir + " to " + oldDir);
+            if (!newDir.renameTo(indexDir)) {
+                if (!oldDir.renameTo(indexDir))
+                    log.error("Unable to restore index directory " + indexDir + " from " + oldDir);
+                throw new IOException("Unable to rename " + newDir + " to " + indexDir);
+            }
+            FileUtils.deleteQuietly(oldDir);
+            if (isReplicationPrimary())
+                getIndexReplication().reset();
+        }
+    }
+
+    protected boolean isReplicationPrimary() {
+        return ROLE_PRIMARY.equals(coreConfig.getReplicationRole());
+    }
+
+    protected boolean isReplica() {
+        return ROLE_REPLICA.equals(coreConfig.getReplicationRole());
+    }
+
+    /**
+     * @return whether this node only searches the index written by another node
+     */
+    protected boolean isReadOnly() {
+        return coreConfig.getReadOnly() || isReplica();
+    }
+
+    /**
+     * @throws IllegalStateException if the index can not be written on this node
+     */
+    protected void checkWritable() {
+        if (isReadOnly())
+            throw new IllegalStateException("FTS index is read-only on this node");
+    }
+
+    @Override
+    public long getSearchedCommitGeneration() {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getIndexCommit().getGeneration();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to get index commit", e);
+        } finally {
+            releaseSearcher(searcher);
+        }
+    }
+
+    @Override
+    public long getSearchedCommitAge() {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            String segmentsFileName = ((DirectoryReader) searcher.getIndexReader()).getIndexCommit()
+                    .getSegmentsFileName();
+            // replicated files keep the modification time of the primary
+            File file = new File(getIndexDir(), segmentsFileName);
+            return file.exists() ? System.currentTimeMillis() - file.lastModified() : -1;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to get index commit", e);
+        } finally {
+            releaseSearcher(searcher);
+        }
+    }
+
+    @Override
+    public long getLastCommitGeneration() {
+        try {
+            return SegmentInfos.getLastCommitGeneration(getDirectory());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to get index commit", e);
+        }
+    }
+
+    protected File getReplicationDir() {
+        String dir = coreConfig.getReplicationDir();
+        if (StringUtils.isBlank(dir))
+            throw new IllegalStateException("FTS replication directory is not set, see cuba.fts.replicationDir");
+        return new File(dir);
+    }
+
+    protected IndexReplication getIndexReplication() {
+        if (indexReplication == null) {
+            synchronized (this) {
+                if (indexReplication == null) {
+                    File replicationDir = getReplicationDir();
+                    ExecutorService executor = Executors.newSingleThreadExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("FtsReplication-%d").setDaemon(true).build());
+                    indexReplication = new IndexReplication(replicationDir, getIndexDir(), executor) {
+                        @Override
+                        protected IndexWriter getIndexWriter() {
+                            return indexWriter;
+                        }
+
+                        @Override
+                        protected void indexReplaced() {
+                            // the searcher is opened again over the new directory on the next search
+                            if (getSearchers().isOpen())
+                                getSearchers().close();
+                        }
+                    };
+                }
+            }
+        }
+        return indexReplication;
+    }
+
+    protected void publishIndexAsync() {
+        getIndexReplication().publishAsync();
+    }
+
+    /**
+     * Copies the last commit published by the primary node and reopens the searcher.
+     */
+    protected void replicateIndex() {
+        try {
+            if (getIndexReplication().replicate())
+                getSearchers().refresh();
+        } catch (Throwable e) {
+            log.error("Error replicating FTS index", e);
+        }
+    }
+
     public Directory getDirectory() {
         if (directory == null) {
             synchronized (this) {
                 if (directory == null) {
-                    String dir = config.getIndexDir();
-                    if (StringUtils.isBlank(dir)) {
-                        Configuration configuration = AppBeans.get(Configuration.NAME);
-                        dir = configuration.getConfig(GlobalConfig.class).getDataDir() + "/ftsindex";
-                    }
-                    File file = new File(dir);
-                    if (!file.exists()) {
+                    File file = getIndexDir();
+                    // the directory of a read-only node belongs to the node writing the index
+                    boolean readOnly = isReadOnly();
+                    if (!readOnly && !file.exists()) {
                         boolean b = file.mkdirs();
                         if (!b)
-                            throw new RuntimeException("Directory " + dir + " doesn't exist and can not be created");
+                            throw new RuntimeException("Directory " + file + " doesn't exist and can not be created");
                     }
                     try {
                         directory = FSDirectory.open(file);
 
-                        if (directory.fileExists("write.lock")) {
+                        if (!readOnly && directory.fileExists("write.lock")) {
                             directory.deleteFile("write.lock");
                         }
                     } catch (IOException e) {
@@ -6,11 +6,18 @@ package com.haulmont.fts.core.app;
 
 import com.haulmont.cuba.core.entity.BaseEntity;
 import com.haulmont.fts.core.sys.EntityDescr;
+import com.haulmont.fts.core.sys.FileContentCache;
+import com.haulmont.fts.core.sys.ReindexProgress;
+import com.haulmont.fts.core.sys.SearchResultCache;
+import com.haulmont.fts.core.sys.SecurityFilters;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.UUID;
 
 /**
  * @author krivopustov
@@ -22,6 +29,14 @@ public interface FtsManagerAPI {
 
     Directory getDirectory();
 
+    /**
+     * Returns a searcher over the latest refreshed state of the index. The searcher must be released by
+     * {@link #releaseSearcher(IndexSearcher)} in the same thread after use.
+     */
+    IndexSearcher acquireSearcher();
+
+    void releaseSearcher(IndexSearcher searcher);
+
     List<BaseEntity> getSearchableEntities(BaseEntity entity);
 
     boolean isReindexing();
@@ -32,6 +47,12 @@ public interface FtsManagerAPI {
 
     int processQueue();
 
+    /**
+     * Signals that queue items for this node have been committed. The queue is processed in background after
+     * {@link FtsCoreConfig#getQueueWakeUpDelay()}, signals received meanwhile are processed by the same run.
+     */
+    void queueChanged();
+
     String optimize();
 
     String upgrade();
@@ -56,5 +77,107 @@ public interface FtsManagerAPI {
 
     void asyncReindexAll();
 
+    /**
+     * Builds a new index from the database in a side directory and replaces the current index by it.
+     * The current index serves searches and queue changes until the replacement.
+     *
+     * @return number of indexed instances
+     */
+    int rebuildIndex();
+
+    /**
+     * @return progress and throughput of the running or the last index rebuilding, null if there was none
+     */
+    @Nullable
+    String getBulkIndexingStatus();
+
+    /**
+     * Splits the id space of the entity into ranges processed by {@link #processReindexRanges()}. The ranges
+     * belong to the index of this node, so they must be processed on the same node.
+     *
+     * @return number of ranges
+     */
+    int partitionedReindexEntity(String entityName);
+
+    int partitionedReindexAll();
+
+    /**
+     * Claims and indexes ranges of the partitioned reindexing in several threads until no ranges are available.
+     * Only the ranges created on this node are processed, as the documents are written to the index of this node.
+     *
+     * @return number of indexed instances
+     */
+    int processReindexRanges();
+
+    /**
+     * @return human-readable state of the partitioned reindexing ranges
+     */
+    String printReindexRanges();
+
+    /**
+     * Makes a failed range of the partitioned reindexing claimable again, so it is retried by the next
+     * {@link #processReindexRanges()} without partitioning the entity again.
+     *
+     * @return false if there is no such range
+     */
+    boolean resetReindexRange(String entityName, int index);
+
     int reindexNextBatch();
+
+    /**
+     * @return persisted progress of the asynchronous reindexing
+     */
+    ReindexProgress getReindexProgress();
+
+    /**
+     * @return human-readable list of the changes removed from the queue after repeated indexing failures
+     */
+    String printDeadLetters();
+
+    /**
+     * Returns the dead letter of the instance to the queue.
+     *
+     * @return false if there is no dead letter of the instance
+     */
+    boolean retryDeadLetter(String entityName, UUID entityId);
+
+    /**
+     * Returns all dead letters to the queue.
+     *
+     * @return number of returned dead letters
+     */
+    int retryDeadLetters();
+
+    /**
+     * @return generation of the index commit the searches are performed on
+     */
+    long getSearchedCommitGeneration();
+
+    /**
+     * @return time in milliseconds passed since the index commit the searches are performed on, -1 if unknown
+     */
+    long getSearchedCommitAge();
+
+    /**
+     * @return generation of the last index commit in the index directory
+     */
+    long getLastCommitGeneration();
+
+    /**
+     * @return cache of the text extracted from files or null if the cache is disabled
+     */
+    @Nullable
+    FileContentCache getFileContentCache();
+
+    /**
+     * @return access-control attributes defined by {@link FtsCoreConfig#getSecurityAttributes()}, null if not defined
+     */
+    @Nullable
+    SecurityFilters getSecurityFilters();
+
+    /**
+     * @return cache of the search results or null if the cache is disabled
+     */
+    @Nullable
+    SearchResultCache getSearchResultCache();
 }
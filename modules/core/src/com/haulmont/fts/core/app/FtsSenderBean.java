@@ -17,6 +17,9 @@ import com.haulmont.cuba.core.global.Configuration;
 import com.haulmont.cuba.core.global.FtsConfig;
 import com.haulmont.cuba.core.global.Metadata;
 import com.haulmont.fts.core.jmx.FtsManagerMBean;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.ManagedBean;
 import javax.annotation.Nullable;
@@ -102,6 +105,30 @@ public class FtsSenderBean implements FtsSender {
         q.setSourceHost(serverId);
         q.setIndexingHost(indexingHost);
         persistence.getEntityManager().persist(q);
+
+        // items of other nodes are picked up by their scheduled processing
+        if (indexingHost == null || indexingHost.equals(serverId))
+            notifyManagerAfterCommit();
+    }
+
+    /**
+     * Makes the manager process the queue when the current transaction is committed.
+     */
+    protected void notifyManagerAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+            return;
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof QueueChangedSynchronization)
+                return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new QueueChangedSynchronization());
+    }
+
+    protected class QueueChangedSynchronization extends TransactionSynchronizationAdapter {
+        @Override
+        public void afterCommit() {
+            manager.queueChanged();
+        }
     }
 
     public void emptyQueue(String entityName) {
@@ -12,15 +12,23 @@ import com.haulmont.cuba.core.entity.Entity;
 import com.haulmont.cuba.core.entity.FileDescriptor;
 import com.haulmont.cuba.core.global.*;
 import com.haulmont.cuba.security.entity.EntityOp;
+import com.haulmont.cuba.security.global.UserSession;
 import com.haulmont.fts.app.FtsService;
 import com.haulmont.fts.core.sys.EntityDescr;
 import com.haulmont.fts.core.sys.EntityInfo;
 import com.haulmont.fts.core.sys.LuceneSearcher;
+import com.haulmont.fts.core.sys.SearchResultCache;
+import com.haulmont.fts.core.sys.SecurityFilters;
 import com.haulmont.fts.core.sys.morphology.MorphologyNormalizer;
 import com.haulmont.fts.global.FTS;
 import com.haulmont.fts.global.SearchResult;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.*;
 
@@ -31,8 +39,6 @@ import java.util.*;
 @Service(FtsService.NAME)
 public class FtsServiceBean implements FtsService {
 
-    protected LuceneSearcher searcher;
-
     @Inject
     protected FtsManagerAPI manager;
 
@@ -48,42 +54,143 @@ public class FtsServiceBean implements FtsService {
     @Inject
     protected Messages messages;
 
+    @Inject
+    protected UserSessionSource userSessionSource;
+
     protected FtsConfig config;
 
+    protected FtsCoreConfig coreConfig;
+
+    protected static final int LOAD_CHUNK = 100;
+
     @Inject
     public void setConfigProvider(Configuration configuration) {
         config = configuration.getConfig(FtsConfig.class);
+        coreConfig = configuration.getConfig(FtsCoreConfig.class);
     }
 
-    protected LuceneSearcher getSearcher() {
-        if (searcher == null) {
-            synchronized (this) {
-                if (searcher == null) {
-                    searcher = new LuceneSearcher(manager.getDirectory(), config.getStoreContentInIndex());
-                }
-            }
-        }
+    protected LuceneSearcher createSearcher(IndexSearcher indexSearcher) {
+        LuceneSearcher searcher = new LuceneSearcher(manager.getDirectory(), indexSearcher,
+                config.getStoreContentInIndex());
+        searcher.setFilter(getSecurityFilter());
         return searcher;
     }
 
+    /**
+     * @return filter excluding the instances the current user can not see by the indexed access-control attributes,
+     * null if the user is not restricted. The constraints are still applied when the instances are loaded
+     */
+    @Nullable
+    protected Filter getSecurityFilter() {
+        SecurityFilters securityFilters = manager.getSecurityFilters();
+        if (securityFilters == null)
+            return null;
+
+        UserSession userSession = userSessionSource.getUserSession();
+        Map<String, Collection<?>> allowedValues = new HashMap<>();
+        for (String entityName : securityFilters.getProperties().keySet()) {
+            if (userSession.getConstraints(entityName).isEmpty())
+                continue;
+            Object value = userSession.getAttribute(securityFilters.getSessionAttribute(entityName));
+            allowedValues.put(entityName,
+                    value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value));
+        }
+        return securityFilters.getFilter(allowedValues);
+    }
+
     @Override
     public SearchResult search(String searchTerm) {
-        if (searcher != null && !searcher.isCurrent())
-            searcher = null;
+        IndexSearcher indexSearcher = manager.acquireSearcher();
+        try {
+            SearchResultCache cache = manager.getSearchResultCache();
+            String cacheKey = cache != null ? getCacheKey(searchTerm, null) : null;
+            long indexVersion = getIndexVersion(indexSearcher);
+            if (cache != null) {
+                SearchResult cachedResult = cache.get(indexVersion, cacheKey);
+                if (cachedResult != null)
+                    return cachedResult;
+            }
 
-        int maxResults = config.getMaxSearchResults();
-        List<EntityInfo> allFieldResults = getSearcher().searchAllField(searchTerm, maxResults);
+            LuceneSearcher searcher = createSearcher(indexSearcher);
 
-        return makeSearchResult(searchTerm, maxResults, allFieldResults);
+            int maxResults = config.getMaxSearchResults();
+            List<EntityInfo> allFieldResults = searcher.searchAllField(searchTerm, maxResults);
+
+            SearchResult result = makeSearchResult(searcher, searchTerm, maxResults, allFieldResults);
+            if (cache != null)
+                cache.put(indexVersion, cacheKey, result);
+            return result;
+        } finally {
+            manager.releaseSearcher(indexSearcher);
+        }
     }
 
     @Override
     public SearchResult search(String searchTerm, List<String> entityNames) {
-        if (searcher != null && !searcher.isCurrent())
-            searcher = null;
+        IndexSearcher indexSearcher = manager.acquireSearcher();
+        try {
+            SearchResultCache cache = manager.getSearchResultCache();
+            String cacheKey = cache != null ? getCacheKey(searchTerm, entityNames) : null;
+            long indexVersion = getIndexVersion(indexSearcher);
+            if (cache != null) {
+                SearchResult cachedResult = cache.get(indexVersion, cacheKey);
+                if (cachedResult != null)
+                    return cachedResult;
+            }
 
+            SearchResult result = search(createSearcher(indexSearcher), searchTerm, entityNames);
+            if (cache != null)
+                cache.put(indexVersion, cacheKey, result);
+            return result;
+        } finally {
+            manager.releaseSearcher(indexSearcher);
+        }
+    }
+
+    protected long getIndexVersion(IndexSearcher indexSearcher) {
+        IndexReader reader = indexSearcher.getIndexReader();
+        return reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : -1;
+    }
+
+    /**
+     * @return key of the search result in the cache: the search term with collapsed whitespace, the searched
+     * entities and the security fingerprint of the current user
+     */
+    protected String getCacheKey(String searchTerm, @Nullable List<String> entityNames) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getSecurityFingerprint()).append('\n');
+        if (entityNames != null) {
+            List<String> sortedNames = new ArrayList<>(entityNames);
+            Collections.sort(sortedNames);
+            sb.append(sortedNames);
+        } else {
+            sb.append('*');
+        }
+        sb.append('\n').append(searchTerm.replaceAll("\\s+", " "));
+        return sb.toString();
+    }
+
+    /**
+     * @return string identifying what the current user can see. Users without constraints on the indexed entities
+     * see the same results if they have the same roles, otherwise the constraints may depend on the user and the
+     * session attributes, so the results are not shared with other sessions
+     */
+    protected String getSecurityFingerprint() {
+        UserSession userSession = userSessionSource.getUserSession();
+        StringBuilder sb = new StringBuilder();
+        sb.append(userSession.getLocale()).append('|');
+        for (String entityName : manager.getDescrByName().keySet()) {
+            if (!userSession.getConstraints(entityName).isEmpty())
+                return sb.append(userSession.getId()).toString();
+        }
+        List<String> roles = new ArrayList<>(userSession.getRoles());
+        Collections.sort(roles);
+        return sb.append(roles).toString();
+    }
+
+    protected SearchResult search(LuceneSearcher searcher, String searchTerm, List<String> entityNames) {
         //first search among entities with names from entityNames method parameter
-        List<EntityInfo> allFieldResults = getSearcher().searchAllField(searchTerm, entityNames);
+        List<EntityInfo> allFieldResults = searcher.searchAllField(searchTerm, entityNames);
 
         SearchResult searchResult = new SearchResult(searchTerm);
         for (EntityInfo entityInfo : allFieldResults) {
@@ -100,9 +207,13 @@ public class FtsServiceBean implements FtsService {
             linkedEntitiesNames.addAll(findLinkedEntitiesNames(entityName));
         }
 
-        List<EntityInfo> linkedEntitiesInfos = getSearcher().searchAllField(searchTerm, linkedEntitiesNames);
+        List<EntityInfo> linkedEntitiesInfos = searcher.searchAllField(searchTerm, linkedEntitiesNames);
+        Map<UUID, List<EntityInfo>> entitiesWithLinkInfosById = searcher.searchLinksField(
+                getIds(linkedEntitiesInfos), entityNames);
         for (EntityInfo linkedEntitiesInfo : linkedEntitiesInfos) {
-            List<EntityInfo> entitiesWithLinkInfos = getSearcher().searchLinksField(linkedEntitiesInfo.getId(), entityNames);
+            List<EntityInfo> entitiesWithLinkInfos = entitiesWithLinkInfosById.get(linkedEntitiesInfo.getId());
+            if (entitiesWithLinkInfos == null)
+                continue;
             for (EntityInfo entityWithLinkInfo : entitiesWithLinkInfos) {
                 searchResult.addHit(entityWithLinkInfo.getId(), linkedEntitiesInfo.getText(), linkedEntitiesInfo.getName(),
                         new MorphologyNormalizer());
@@ -139,82 +250,84 @@ public class FtsServiceBean implements FtsService {
         return result;
     }
 
-    protected SearchResult makeSearchResult(String searchTerm, int maxResults, List<EntityInfo> allFieldResults) {
+    protected SearchResult makeSearchResult(LuceneSearcher searcher, String searchTerm, int maxResults,
+                                            List<EntityInfo> allFieldResults) {
         SearchResult result = new SearchResult(searchTerm);
 
         if (!allFieldResults.isEmpty()) {
-            Transaction tx = persistence.createTransaction();
-            try {
-                for (EntityInfo entityInfo : allFieldResults) {
-                    if (!manager.showInResults(entityInfo.getName()))
+            // ids of the found instances by entity in the order of hits
+            Map<String, Set<UUID>> idsByEntity = new LinkedHashMap<>();
+            for (EntityInfo entityInfo : allFieldResults) {
+                if (!manager.showInResults(entityInfo.getName()))
+                    continue;
+
+                addId(idsByEntity, entityInfo);
+                result.addHit(entityInfo.getId(), entityInfo.getText(), null,
+                        new MorphologyNormalizer());
+            }
+
+            Map<UUID, List<EntityInfo>> linksFieldResultsById = searcher.searchLinksField(getIds(allFieldResults),
+                    maxResults);
+            for (EntityInfo entityInfo : allFieldResults) {
+                List<EntityInfo> linksFieldResults = linksFieldResultsById.get(entityInfo.getId());
+                if (linksFieldResults == null)
+                    continue;
+
+                for (EntityInfo linkEntityInfo : linksFieldResults) {
+                    if (!manager.showInResults(linkEntityInfo.getName()))
                         continue;
 
-                    if (result.getEntriesCount(entityInfo.getName()) < config.getSearchResultsBatchSize()) {
-                        SearchResult.Entry entry = createEntry(entityInfo.getName(), entityInfo.getId());
-                        if (entry != null) {
-                            result.addEntry(entityInfo.getName(), entry);
-                        }
-                    } else {
-                        if (!result.hasEntry(entityInfo.getName(), entityInfo.getId())) {
-                            result.addId(entityInfo.getName(), entityInfo.getId());
-                        }
-                    }
-                    result.addHit(entityInfo.getId(), entityInfo.getText(), null,
+                    addId(idsByEntity, linkEntityInfo);
+                    result.addHit(linkEntityInfo.getId(), entityInfo.getText(), entityInfo.getName(),
                             new MorphologyNormalizer());
                 }
-                tx.commit();
-            } finally {
-                tx.end();
             }
 
-            for (EntityInfo entityInfo : allFieldResults) {
-                List<EntityInfo> linksFieldResults = getSearcher().searchLinksField(entityInfo.getId(), maxResults);
-                if (!linksFieldResults.isEmpty()) {
-                    tx = persistence.createTransaction();
-                    try {
-                        for (EntityInfo linkEntityInfo : linksFieldResults) {
-                            if (!manager.showInResults(linkEntityInfo.getName()))
-                                continue;
-
-                            if (result.getEntriesCount(linkEntityInfo.getName()) < config.getSearchResultsBatchSize()) {
-                                SearchResult.Entry entry = createEntry(linkEntityInfo.getName(), linkEntityInfo.getId());
-                                if (entry != null) {
-                                    result.addEntry(linkEntityInfo.getName(), entry);
-                                }
-                            } else {
-                                if (!result.hasEntry(linkEntityInfo.getName(), linkEntityInfo.getId())) {
-                                    result.addId(linkEntityInfo.getName(), linkEntityInfo.getId());
-                                }
-                            }
-                            result.addHit(linkEntityInfo.getId(), entityInfo.getText(), entityInfo.getName(),
-                                    new MorphologyNormalizer());
-                        }
-                        tx.commit();
-                    } finally {
-                        tx.end();
+            Transaction tx = persistence.createTransaction();
+            try {
+                for (Map.Entry<String, Set<UUID>> entry : idsByEntity.entrySet()) {
+                    List<UUID> remainingIds = addEntries(result, entry.getKey(), new ArrayList<>(entry.getValue()),
+                            config.getSearchResultsBatchSize());
+                    for (UUID id : remainingIds) {
+                        result.addId(entry.getKey(), id);
                     }
                 }
+                tx.commit();
+            } finally {
+                tx.end();
             }
         }
         return result;
     }
 
+    protected void addId(Map<String, Set<UUID>> idsByEntity, EntityInfo entityInfo) {
+        Set<UUID> ids = idsByEntity.get(entityInfo.getName());
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            idsByEntity.put(entityInfo.getName(), ids);
+        }
+        ids.add(entityInfo.getId());
+    }
+
+    protected Set<UUID> getIds(List<EntityInfo> entityInfos) {
+        Set<UUID> ids = new LinkedHashSet<>(entityInfos.size());
+        for (EntityInfo entityInfo : entityInfos) {
+            ids.add(entityInfo.getId());
+        }
+        return ids;
+    }
+
     @Override
     public SearchResult expandResult(SearchResult result, String entityName) {
         int max = result.getEntriesCount(entityName) + config.getSearchResultsBatchSize();
+        List<UUID> ids = result.getIds(entityName);
 
         Transaction tx = persistence.createTransaction();
         try {
-            for (UUID id : result.getIds(entityName)) {
-                if (result.getEntriesCount(entityName) >= max)
-                    break;
-
-                SearchResult.Entry entry = createEntry(entityName, id);
-                if (entry != null) {
-                    result.addEntry(entityName, entry);
-                }
-
-                result.removeId(entityName, id);
+            Set<UUID> remainingIds = new HashSet<>(addEntries(result, entityName, ids, max));
+            for (UUID id : ids) {
+                if (!remainingIds.contains(id))
+                    result.removeId(entityName, id);
             }
             tx.commit();
         } finally {
@@ -223,39 +336,112 @@ public class FtsServiceBean implements FtsService {
         return result;
     }
 
+    /**
+     * Adds entries of the instances in the given order until the entity has the given number of entries.
+     * The instances are loaded by one query per batch, instances not found or not permitted are skipped.
+     *
+     * @return ids left without entries
+     */
+    protected List<UUID> addEntries(SearchResult result, String entityName, List<UUID> ids, int maxEntries) {
+        int index = 0;
+        while (index < ids.size() && result.getEntriesCount(entityName) < maxEntries) {
+            List<UUID> batch = new ArrayList<>();
+            while (index < ids.size() && batch.size() < maxEntries - result.getEntriesCount(entityName)) {
+                UUID id = ids.get(index++);
+                if (!result.hasEntry(entityName, id))
+                    batch.add(id);
+            }
+            Map<UUID, SearchResult.Entry> entries = createEntries(entityName, batch);
+            for (UUID id : batch) {
+                SearchResult.Entry entry = entries.get(id);
+                if (entry != null)
+                    result.addEntry(entityName, entry);
+            }
+        }
+
+        List<UUID> remainingIds = new ArrayList<>();
+        for (UUID id : ids.subList(index, ids.size())) {
+            if (!result.hasEntry(entityName, id))
+                remainingIds.add(id);
+        }
+        return remainingIds;
+    }
+
     @Override
     public boolean isEntityIndexed(String entityName) {
         return manager.showInResults(entityName);
     }
 
     protected SearchResult.Entry createEntry(String entityName, UUID entityId) {
+        return createEntries(entityName, Collections.singletonList(entityId)).get(entityId);
+    }
+
+    /**
+     * @return entries of the found instances by id
+     */
+    protected Map<UUID, SearchResult.Entry> createEntries(String entityName, List<UUID> entityIds) {
+        Map<UUID, SearchResult.Entry> entries = new HashMap<>();
         MetaClass metaClass = metadata.getSession().getClassNN(entityName);
 
-        if (!security.isEntityOpPermitted(metaClass, EntityOp.READ))
-            return null;
+        if (entityIds.isEmpty() || !security.isEntityOpPermitted(metaClass, EntityOp.READ))
+            return entries;
+
+        List<UUID> reloadedIds = entityIds;
+        if (canUseStoredCaptions(entityName)) {
+            Map<UUID, String> captions = loadStoredCaptions(entityIds);
+            reloadedIds = new ArrayList<>();
+            for (UUID entityId : entityIds) {
+                String caption = captions.get(entityId);
+                if (caption != null)
+                    entries.put(entityId, new SearchResult.Entry(entityId, caption));
+                else
+                    reloadedIds.add(entityId);
+            }
+        }
 
-        Entity entity = getReloadedEntity(entityName, entityId, metaClass);
-        if (entity == null)
-            return null;
+        if (!reloadedIds.isEmpty()) {
+            for (Entity entity : getReloadedEntities(entityName, reloadedIds, metaClass)) {
+                UUID entityId = (UUID) entity.getId();
+                entries.put(entityId, new SearchResult.Entry(entityId, entity.getInstanceName()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return whether the instance names stored in the index can be shown without loading the instances,
+     * i.e. the instances are not restricted by security constraints of the current user
+     */
+    protected boolean canUseStoredCaptions(String entityName) {
+        return coreConfig.getStoreInstanceName()
+                && userSessionSource.getUserSession().getConstraints(entityName).isEmpty();
+    }
 
-        String entityCaption = entity.getInstanceName();
-        return new SearchResult.Entry(entityId, entityCaption);
+    protected Map<UUID, String> loadStoredCaptions(List<UUID> entityIds) {
+        IndexSearcher indexSearcher = manager.acquireSearcher();
+        try {
+            return createSearcher(indexSearcher).searchCaptions(entityIds);
+        } finally {
+            manager.releaseSearcher(indexSearcher);
+        }
     }
 
-    protected Entity getReloadedEntity(String entityName, UUID entityId, MetaClass metaClass) {
+    protected List<Entity> getReloadedEntities(String entityName, List<UUID> entityIds, MetaClass metaClass) {
         EntityManager em = persistence.getEntityManager();
 
-        Query query = em.createQuery("select e from " + entityName + " e where e.id = :id");
-        security.applyConstraints(query);
+        List<Entity> result = new ArrayList<>(entityIds.size());
+        for (int i = 0; i < entityIds.size(); i += LOAD_CHUNK) {
+            Query query = em.createQuery("select e from " + entityName + " e where e.id in :ids");
+            security.applyConstraints(query);
 
-        query.setParameter("id", entityId);
+            query.setParameter("ids", entityIds.subList(i, Math.min(i + LOAD_CHUNK, entityIds.size())));
 
-        query.setView(metadata.getViewRepository().getView(metaClass.getJavaClass(), View.MINIMAL));
+            query.setView(metadata.getViewRepository().getView(metaClass.getJavaClass(), View.MINIMAL));
 
-        List<Entity> list = query.getResultList();
-        if (list.isEmpty())
-            return null;
-        return list.get(0);
+            List<Entity> list = query.getResultList();
+            result.addAll(list);
+        }
+        return result;
     }
 
     @Override
@@ -7,6 +7,8 @@ package com.haulmont.fts.core.jmx;
 
 import com.haulmont.cuba.security.app.Authenticated;
 import com.haulmont.fts.core.app.FtsManagerAPI;
+import com.haulmont.fts.core.sys.FileContentCache;
+import com.haulmont.fts.core.sys.SearchResultCache;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -14,6 +16,7 @@ import org.apache.commons.logging.LogFactory;
 import javax.annotation.ManagedBean;
 import javax.inject.Inject;
 import java.util.Queue;
+import java.util.UUID;
 
 /**
  * @author krivopustov
@@ -52,6 +55,32 @@ public class FtsManager implements FtsManagerMBean {
         return manager.getReindexEntitiesQueue();
     }
 
+    @Override
+    public String getReindexProgress() {
+        return manager.getReindexProgress().printProgress();
+    }
+
+    @Override
+    public String getBulkIndexingStatus() {
+        String status = manager.getBulkIndexingStatus();
+        return status != null ? status : "Index has not been rebuilt";
+    }
+
+    @Override
+    public long getSearchedCommitGeneration() {
+        return manager.getSearchedCommitGeneration();
+    }
+
+    @Override
+    public long getSearchedCommitAge() {
+        return manager.getSearchedCommitAge();
+    }
+
+    @Override
+    public long getLastCommitGeneration() {
+        return manager.getLastCommitGeneration();
+    }
+
     @Override
     public String processQueue() {
         try {
@@ -130,6 +159,195 @@ public class FtsManager implements FtsManagerMBean {
         }
     }
 
+    @Authenticated
+    @Override
+    public String partitionedReindexEntity(String entityName) {
+        try {
+            manager.deleteIndexForEntity(entityName);
+            int count = manager.partitionedReindexEntity(entityName);
+            return String.format("Entity %s is split into %d ranges. The ranges will be indexed " +
+                    "by processReindexRanges method.", entityName, count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String partitionedReindexAll() {
+        try {
+            manager.deleteIndex();
+            int count = manager.partitionedReindexAll();
+            return String.format("All entities are split into %d ranges. The ranges will be indexed " +
+                    "by processReindexRanges method.", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public String processReindexRanges() {
+        try {
+            // login performed inside processReindexRanges()
+            int count = manager.processReindexRanges();
+            return String.format("Indexed %d instances", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String getReindexRanges() {
+        try {
+            return manager.printReindexRanges();
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String resetReindexRange(String entityName, int index) {
+        try {
+            if (!manager.resetReindexRange(entityName, index))
+                return String.format("No reindex range %s#%d", entityName, index);
+            return "Reset";
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String getDeadLetters() {
+        try {
+            return manager.printDeadLetters();
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String retryDeadLetter(String entityName, String entityId) {
+        try {
+            if (!manager.retryDeadLetter(entityName, UUID.fromString(entityId)))
+                return String.format("No dead letter of %s-%s", entityName, entityId);
+            return "Returned to the queue";
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Authenticated
+    @Override
+    public String retryDeadLetters() {
+        try {
+            int count = manager.retryDeadLetters();
+            return String.format("%d dead letters returned to the queue", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public String rebuildIndex() {
+        try {
+            // login performed inside rebuildIndex()
+            int count = manager.rebuildIndex();
+            return String.format("Index is rebuilt, %d instances indexed", count);
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public long getContentCacheHitCount() {
+        FileContentCache cache = manager.getFileContentCache();
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    @Override
+    public long getContentCacheMissCount() {
+        FileContentCache cache = manager.getFileContentCache();
+        return cache != null ? cache.getMissCount() : 0;
+    }
+
+    @Override
+    public long getContentCacheSize() {
+        FileContentCache cache = manager.getFileContentCache();
+        return cache != null ? cache.getSize() : 0;
+    }
+
+    @Override
+    public String clearContentCache() {
+        try {
+            FileContentCache cache = manager.getFileContentCache();
+            if (cache == null)
+                return "File content cache is disabled";
+            cache.clear();
+            return "Done";
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
+    @Override
+    public long getResultCacheHitCount() {
+        SearchResultCache cache = manager.getSearchResultCache();
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    @Override
+    public long getResultCacheMissCount() {
+        SearchResultCache cache = manager.getSearchResultCache();
+        return cache != null ? cache.getMissCount() : 0;
+    }
+
+    @Override
+    public double getResultCacheHitRatio() {
+        long hits = getResultCacheHitCount();
+        long total = hits + getResultCacheMissCount();
+        return total > 0 ? hits * 100.0 / total : 0;
+    }
+
+    @Override
+    public long getResultCacheSize() {
+        SearchResultCache cache = manager.getSearchResultCache();
+        return cache != null ? cache.getSize() : 0;
+    }
+
+    @Override
+    public int getResultCacheCount() {
+        SearchResultCache cache = manager.getSearchResultCache();
+        return cache != null ? cache.getCount() : 0;
+    }
+
+    @Override
+    public String clearResultCache() {
+        try {
+            SearchResultCache cache = manager.getSearchResultCache();
+            if (cache == null)
+                return "Search result cache is disabled";
+            cache.clear();
+            return "Done";
+        } catch (Throwable e) {
+            log.error("Error", e);
+            return ExceptionUtils.getStackTrace(e);
+        }
+    }
+
     @Override
     public String processEntireQueue() {
         try {
@@ -26,6 +26,19 @@ public interface FtsManagerMBean {
 
     Queue<String> getReindexEntitiesQueue();
 
+    String getReindexProgress();
+
+    String getBulkIndexingStatus();
+
+    long getSearchedCommitGeneration();
+
+    /**
+     * @return time in milliseconds passed since the searched index commit
+     */
+    long getSearchedCommitAge();
+
+    long getLastCommitGeneration();
+
     String processQueue();
 
     String optimize();
@@ -49,4 +62,67 @@ public interface FtsManagerMBean {
     String asyncReindexAll();
 
     String processEntireQueue();
+
+    @ManagedOperation(description = "Split the id space of the given entity into ranges, which are reindexed " +
+            "concurrently by processReindexRanges invocations")
+    @ManagedOperationParameters({@ManagedOperationParameter(name = "entityName", description = "")})
+    String partitionedReindexEntity(String entityName);
+
+    @ManagedOperation(description = "Split the id space of all entities into ranges, which are reindexed " +
+            "concurrently by processReindexRanges invocations")
+    String partitionedReindexAll();
+
+    @ManagedOperation(description = "Claim and index available reindex ranges in several threads")
+    String processReindexRanges();
+
+    String getReindexRanges();
+
+    @ManagedOperation(description = "Make a failed reindex range available for processReindexRanges again. " +
+            "The range continues from its last saved progress")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "entityName", description = ""),
+            @ManagedOperationParameter(name = "index", description = "Number of the range within the entity")
+    })
+    String resetReindexRange(String entityName, int index);
+
+    String getDeadLetters();
+
+    @ManagedOperation(description = "Return the change of the given instance from the dead letters to the queue")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "entityName", description = ""),
+            @ManagedOperationParameter(name = "entityId", description = "")
+    })
+    String retryDeadLetter(String entityName, String entityId);
+
+    @ManagedOperation(description = "Return all dead letters to the queue")
+    String retryDeadLetters();
+
+    @ManagedOperation(description = "Build a new index from the database in a side directory and replace the current " +
+            "index by it. The current index remains available for search until the replacement")
+    String rebuildIndex();
+
+    long getContentCacheHitCount();
+
+    long getContentCacheMissCount();
+
+    long getContentCacheSize();
+
+    @ManagedOperation(description = "Remove all entries from the extracted file content cache")
+    String clearContentCache();
+
+    long getResultCacheHitCount();
+
+    long getResultCacheMissCount();
+
+    /**
+     * @return share of the searches served from the result cache in percent
+     */
+    double getResultCacheHitRatio();
+
+    long getResultCacheSize();
+
+    int getResultCacheCount();
+
+    @ManagedOperation(description = "Remove all entries from the search result cache")
+    String clearResultCache();
 }
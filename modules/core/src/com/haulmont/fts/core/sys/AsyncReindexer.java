@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.TypedQuery;
+import com.haulmont.cuba.core.app.FtsSender;
+import com.haulmont.cuba.core.entity.Entity;
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.global.AppBeans;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * Puts the instances of the entities waiting for asynchronous reindexing to the queue by batches. Each batch starts
+ * right after the cursor saved in {@link ReindexProgress}, the cursor is advanced after the batch is committed,
+ * so reindexing resumes after a restart.
+ *
+ * @version $Id$
+ */
+public class AsyncReindexer {
+
+    private static Log log = LogFactory.getLog(AsyncReindexer.class);
+
+    protected ReindexProgress progress;
+
+    protected Queue<String> entities;
+
+    protected Map<String, EntityDescr> descriptions;
+
+    protected Persistence persistence;
+
+    protected FtsSender ftsSender;
+
+    /**
+     * @param entities  names of the entities waiting for reindexing, the first one is processed
+     */
+    public AsyncReindexer(ReindexProgress progress, Queue<String> entities, Map<String, EntityDescr> descriptions) {
+        this.progress = progress;
+        this.entities = entities;
+        this.descriptions = descriptions;
+        persistence = AppBeans.get(Persistence.NAME);
+        ftsSender = AppBeans.get(FtsSender.NAME);
+    }
+
+    /**
+     * Removes the queued changes of the entity and makes it wait for reindexing from the first instance.
+     */
+    public void start(String entityName) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            ftsSender.emptyQueue(entityName);
+            Long total = persistence.getEntityManager()
+                    .createQuery("select count(e) from " + entityName + " e", Long.class)
+                    .getSingleResult();
+            tx.commit();
+
+            progress.start(entityName, total);
+            progress.save();
+            if (!entities.contains(entityName))
+                entities.add(entityName);
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * Puts the next batch of instances of the first waiting entity to the queue.
+     *
+     * @return number of processed instances
+     */
+    public int processNextBatch(int batchSize) {
+        String entityName = entities.peek();
+        if (entityName == null)
+            return 0;
+
+        EntityDescr descr = descriptions.get(entityName);
+        if (descr == null) {
+            // the configuration has changed since reindexing was requested
+            log.warn("FTS configuration not found for " + entityName + ", reindexing is cancelled");
+            entities.remove();
+            progress.remove(entityName);
+            progress.save();
+            return 0;
+        }
+
+        // the batch starts right after the last processed id, so it is an index range scan
+        UUID lastId = progress.getLastId(entityName);
+        String where = lastId == null ? "" : " where e.id > :lastId";
+
+        int size;
+        int count = 0;
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            if (StringUtils.isBlank(descr.getSearchableIfScript())) {
+                TypedQuery<UUID> query = em.createQuery(
+                        "select e.id from " + entityName + " e" + where + " order by e.id", UUID.class);
+                if (lastId != null)
+                    query.setParameter("lastId", lastId);
+                List<UUID> ids = query.setMaxResults(batchSize).getResultList();
+                for (UUID id : ids) {
+                    ftsSender.enqueue(entityName, id, FtsChangeType.INSERT);
+                    lastId = id;
+                    count++;
+                }
+                size = ids.size();
+            } else {
+                Query query = em.createQuery("select e from " + entityName + " e" + where + " order by e.id");
+                if (lastId != null)
+                    query.setParameter("lastId", lastId);
+                List<Entity> list = query.setMaxResults(batchSize).getResultList();
+                for (Entity entity : list) {
+                    if (accept(entityName, entity)) {
+                        ftsSender.enqueue(entityName, (UUID) entity.getId(), FtsChangeType.INSERT);
+                        count++;
+                    }
+                    lastId = (UUID) entity.getId();
+                }
+                size = list.size();
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+
+        // the cursor is saved after the commit: after a failure the batch is enqueued again rather than lost
+        if (size < batchSize) {
+            entities.remove();
+            progress.remove(entityName);
+        } else {
+            progress.advance(entityName, lastId, size, count);
+        }
+        progress.save();
+
+        log.debug(size + " instances of " + entityName + " was processed. "
+                + count + " of them was added to the FTS queue");
+        return size;
+    }
+
+    /**
+     * @return whether the loaded instance must be indexed, invoked if the entity has a searchableIf script
+     */
+    protected boolean accept(String entityName, Entity entity) {
+        return true;
+    }
+}
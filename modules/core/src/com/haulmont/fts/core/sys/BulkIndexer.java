@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.entity.Entity;
+import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.global.View;
+import com.haulmont.cuba.core.sys.AppContext;
+import com.haulmont.cuba.core.sys.SecurityContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes all instances of entities directly from the database, bypassing the FTS queue.
+ * <p>Instances are read by chunks ordered by id with the indexing view, the next chunk starting after the last id of
+ * the previous one. Documents of each chunk are built and added to the index writer on the executor, no more than
+ * two chunks per thread are waiting for it, so the memory consumption does not depend on the table size.</p>
+ * <p>The index writer is not committed here.</p>
+ *
+ * @version $Id$
+ */
+public class BulkIndexer {
+
+    private static Log log = LogFactory.getLog(BulkIndexer.class);
+
+    protected static final long REPORT_INTERVAL = 10000;
+
+    protected LuceneIndexer indexer;
+
+    protected ExecutorService executor;
+
+    protected int threads;
+
+    protected int chunkSize;
+
+    protected Persistence persistence;
+
+    protected final AtomicLong indexed = new AtomicLong();
+
+    protected final AtomicLong failed = new AtomicLong();
+
+    protected volatile String currentEntity;
+
+    protected long startTime;
+
+    protected long lastReportTime;
+
+    public BulkIndexer(LuceneIndexer indexer, ExecutorService executor, int threads, int chunkSize) {
+        this.indexer = indexer;
+        this.executor = executor;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        persistence = AppBeans.get(Persistence.NAME);
+        startTime = System.currentTimeMillis();
+        lastReportTime = startTime;
+    }
+
+    /**
+     * Indexes all instances of the entity, waiting for the completion.
+     *
+     * @return number of indexed instances
+     */
+    public int index(final String entityName) {
+        currentEntity = entityName;
+        View view = indexer.createView(entityName);
+        final SecurityContext securityContext = AppContext.getSecurityContext();
+
+        long indexedBefore = indexed.get();
+        LinkedList<Future<Map<UUID, IndexingException>>> futures = new LinkedList<>();
+        UUID lastId = null;
+        int size;
+        do {
+            final List<Entity> entities = new ArrayList<>(chunkSize);
+            Transaction tx = persistence.createTransaction();
+            try {
+                EntityManager em = persistence.getEntityManager();
+                Query query = em.createQuery("select e from " + entityName + " e"
+                        + (lastId == null ? "" : " where e.id > :lastId") + " order by e.id");
+                if (lastId != null)
+                    query.setParameter("lastId", lastId);
+                query.setView(view);
+                query.setMaxResults(chunkSize);
+                List<Entity> list = query.getResultList();
+                for (Entity entity : list) {
+                    lastId = (UUID) entity.getId();
+                    if (accept(entityName, entity))
+                        entities.add(entity);
+                }
+                size = list.size();
+                tx.commit();
+            } finally {
+                tx.end();
+            }
+
+            if (!entities.isEmpty()) {
+                futures.add(executor.submit(new Callable<Map<UUID, IndexingException>>() {
+                    @Override
+                    public Map<UUID, IndexingException> call() throws Exception {
+                        AppContext.setSecurityContext(securityContext);
+                        try {
+                            Map<UUID, IndexingException> errors = indexer.indexLoadedEntities(entityName, entities);
+                            indexed.addAndGet(entities.size() - errors.size());
+                            return errors;
+                        } finally {
+                            AppContext.setSecurityContext(null);
+                        }
+                    }
+                }));
+            }
+            while (futures.size() > threads * 2 || (size < chunkSize && !futures.isEmpty())) {
+                complete(futures.removeFirst(), entityName);
+            }
+            reportIfNeeded();
+        } while (size == chunkSize);
+
+        int count = (int) (indexed.get() - indexedBefore);
+        log.info(count + " instances of " + entityName + " indexed");
+        return count;
+    }
+
+    /**
+     * @return whether the loaded instance must be indexed
+     */
+    protected boolean accept(String entityName, Entity entity) {
+        return true;
+    }
+
+    protected void complete(Future<Map<UUID, IndexingException>> future, String entityName) {
+        Map<UUID, IndexingException> errors;
+        try {
+            errors = future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error indexing " + entityName, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Bulk indexing interrupted", e);
+        }
+        if (!errors.isEmpty()) {
+            log.warn(errors.size() + " instances of " + entityName + " have not been indexed: " + errors.keySet());
+            failed.addAndGet(errors.size());
+            failed(entityName, errors);
+        }
+    }
+
+    /**
+     * Invoked in the calling thread with the instances that have not been indexed or have been indexed without
+     * file content.
+     */
+    protected void failed(String entityName, Map<UUID, IndexingException> errors) {
+    }
+
+    protected void reportIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime >= REPORT_INTERVAL) {
+            lastReportTime = now;
+            log.info(getStatus());
+        }
+    }
+
+    /**
+     * @return human-readable number of processed instances and throughput
+     */
+    public String getStatus() {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        long count = indexed.get();
+        return String.format("Bulk indexing %s: %d instances indexed, %d failed, %d instances/s",
+                currentEntity, count, failed.get(), count * 1000 / elapsed);
+    }
+
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
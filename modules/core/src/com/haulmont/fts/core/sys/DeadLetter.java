@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.UUID;
+
+/**
+ * Change of an entity instance removed from the queue after it has failed to be indexed too many times.
+ *
+ * @version $Id$
+ */
+public class DeadLetter {
+
+    protected static final String SEPARATOR = "|";
+
+    protected static final int MAX_ERROR_LENGTH = 1000;
+
+    protected String entityName;
+
+    protected UUID entityId;
+
+    protected FtsChangeType changeType;
+
+    protected int attempts;
+
+    protected long failedAt;
+
+    protected String error;
+
+    public DeadLetter(String entityName, UUID entityId, FtsChangeType changeType, int attempts, long failedAt,
+                      String error) {
+        this.entityName = entityName;
+        this.entityId = entityId;
+        this.changeType = changeType;
+        this.attempts = attempts;
+        this.failedAt = failedAt;
+        this.error = StringUtils.abbreviate(StringUtils.defaultString(error), MAX_ERROR_LENGTH);
+    }
+
+    public String encode() {
+        // the error goes last as it may contain the separator
+        return StringUtils.join(new Object[]{changeType.name(), attempts, failedAt, error}, SEPARATOR);
+    }
+
+    public static DeadLetter decode(String entityName, UUID entityId, String value) {
+        String[] parts = StringUtils.splitPreserveAllTokens(value, SEPARATOR, 4);
+        if (parts.length != 4)
+            throw new IllegalArgumentException("Invalid dead letter: " + value);
+
+        return new DeadLetter(entityName, entityId, FtsChangeType.valueOf(parts[0]), Integer.parseInt(parts[1]),
+                Long.parseLong(parts[2]), parts[3]);
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public UUID getEntityId() {
+        return entityId;
+    }
+
+    public FtsChangeType getChangeType() {
+        return changeType;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getFailedAt() {
+        return failedAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return entityName + "-" + entityId + " " + changeType;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.app.FtsSender;
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.global.AppBeans;
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Counts failed attempts of indexing the instances taken from the queue and moves the changes that keep failing
+ * to the dead letters. Each failure is saved by {@link DeadLetterStore}, the counters are restored from the store
+ * on the first use after a restart.
+ *
+ * @version $Id$
+ */
+public class DeadLetterHandler {
+
+    private static Log log = LogFactory.getLog(DeadLetterHandler.class);
+
+    protected DeadLetterStore store;
+
+    protected final QueueRetryTracker retryTracker = new QueueRetryTracker();
+
+    protected volatile boolean restored;
+
+    protected Persistence persistence;
+
+    protected FtsSender ftsSender;
+
+    protected int maxAttempts = 5;
+
+    protected long retryDelay = 10000;
+
+    protected int maxDeadLetters = 1000;
+
+    /**
+     * @param scope name of the index the dead letters belong to, e.g. the indexing host
+     */
+    public DeadLetterHandler(String scope) {
+        store = new DeadLetterStore(scope);
+        persistence = AppBeans.get(Persistence.NAME);
+        ftsSender = AppBeans.get(FtsSender.NAME);
+    }
+
+    /**
+     * @param maxAttempts       number of failed attempts after which a change is moved to the dead letters,
+     *                          0 means unlimited
+     * @param retryDelay        delay in milliseconds before retrying an instance after the first failure
+     * @param maxDeadLetters    maximum number of stored dead letters
+     */
+    public void setLimits(int maxAttempts, long retryDelay, int maxDeadLetters) {
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.maxDeadLetters = maxDeadLetters;
+    }
+
+    /**
+     * @return ids of the instances whose queue items must not be retried yet
+     */
+    public Set<UUID> getDelayedIds(long now) {
+        restore();
+        return retryTracker.getDelayedIds(now);
+    }
+
+    /**
+     * Counts failed attempts of indexing the instances and moves the changes that have failed the maximum number
+     * of times to the dead letters, while their number is below the limit. Failures of file content indexing are
+     * not counted, as the instance itself is indexed.
+     *
+     * @return ids of the instances moved to the dead letters, their queue items must be removed
+     */
+    public Set<UUID> registerAttempts(Map<String, Map<UUID, FtsChangeType>> changesByEntity,
+                                      Map<UUID, IndexingException> errors) {
+        restore();
+        long now = System.currentTimeMillis();
+        List<DeadLetter> failures = new ArrayList<>();
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : changesByEntity.entrySet()) {
+            List<UUID> indexedIds = new ArrayList<>();
+            for (Map.Entry<UUID, FtsChangeType> change : entry.getValue().entrySet()) {
+                IndexingException e = errors.get(change.getKey());
+                if (e == null || e.getEntityType() == IndexingException.EntityType.FILE) {
+                    if (retryTracker.reset(change.getKey()))
+                        indexedIds.add(change.getKey());
+                    continue;
+                }
+                int attempts = retryTracker.failed(change.getKey(), now, retryDelay);
+                DeadLetter failure = new DeadLetter(entry.getKey(), change.getKey(), change.getValue(), attempts, now,
+                        ExceptionUtils.getRootCauseMessage(e));
+                failures.add(failure);
+                if (maxAttempts > 0 && attempts >= maxAttempts)
+                    deadLetters.add(failure);
+            }
+            if (!indexedIds.isEmpty())
+                store.deleteFailures(entry.getKey(), indexedIds);
+        }
+        if (failures.isEmpty())
+            return Collections.emptySet();
+
+        // saved before the dead letters, a change not fitting into the dead letters keeps counting
+        store.saveFailures(failures);
+        if (deadLetters.isEmpty())
+            return Collections.emptySet();
+
+        List<DeadLetter> saved = store.save(deadLetters, maxDeadLetters);
+        if (!saved.isEmpty())
+            log.warn(saved.size() + " changes failed " + maxAttempts + " times and are moved to the dead letters: "
+                    + saved);
+        if (saved.size() < deadLetters.size())
+            log.error((deadLetters.size() - saved.size()) + " changes failed " + maxAttempts + " times but stay "
+                    + "in the queue, as the number of dead letters has reached " + maxDeadLetters);
+        Set<UUID> ids = new HashSet<>();
+        for (DeadLetter deadLetter : saved) {
+            retryTracker.reset(deadLetter.getEntityId());
+            ids.add(deadLetter.getEntityId());
+        }
+        return ids;
+    }
+
+    /**
+     * @return the dead letters with their last errors
+     */
+    public String print() {
+        List<DeadLetter> deadLetters = store.load();
+        if (deadLetters.isEmpty())
+            return "No dead letters";
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder sb = new StringBuilder();
+        for (DeadLetter deadLetter : deadLetters) {
+            sb.append(deadLetter).append(", attempts: ").append(deadLetter.getAttempts())
+                    .append(", failed at ").append(dateFormat.format(new Date(deadLetter.getFailedAt())))
+                    .append(": ").append(deadLetter.getError()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the change of the instance to the queue.
+     *
+     * @return false if there is no dead letter for the instance
+     */
+    public boolean retry(String entityName, UUID entityId) {
+        DeadLetter deadLetter = store.find(entityName, entityId);
+        if (deadLetter == null)
+            return false;
+        retry(Collections.singletonList(deadLetter));
+        return true;
+    }
+
+    /**
+     * Returns all dead letters to the queue.
+     *
+     * @return number of returned changes
+     */
+    public int retryAll() {
+        List<DeadLetter> deadLetters = store.load();
+        retry(deadLetters);
+        return deadLetters.size();
+    }
+
+    protected void retry(List<DeadLetter> deadLetters) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            for (DeadLetter deadLetter : deadLetters) {
+                retryTracker.reset(deadLetter.getEntityId());
+                ftsSender.enqueue(deadLetter.getEntityName(), deadLetter.getEntityId(), deadLetter.getChangeType());
+                store.delete(em, deadLetter.getEntityName(), deadLetter.getEntityId());
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * Restores the failed attempts saved before a restart.
+     */
+    protected void restore() {
+        if (restored)
+            return;
+        synchronized (this) {
+            if (restored)
+                return;
+            for (DeadLetter failure : store.loadFailures()) {
+                retryTracker.restore(failure.getEntityId(), failure.getAttempts(), failure.getFailedAt(), retryDelay);
+            }
+            restored = true;
+        }
+    }
+}
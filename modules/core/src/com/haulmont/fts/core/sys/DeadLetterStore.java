@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.entity.Config;
+import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.global.Metadata;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Stores dead letters in the {@code sys$Config} table, one record per entity instance. The failed attempts of
+ * the instances that have not been given up yet are stored the same way with a different prefix, so they are not
+ * counted anew after a restart.
+ *
+ * @version $Id$
+ */
+public class DeadLetterStore {
+
+    protected static final String PREFIX = "fts.deadLetter.";
+
+    protected static final String FAILURE_PREFIX = "fts.failure.";
+
+    protected String prefix;
+
+    protected String failurePrefix;
+
+    protected Persistence persistence;
+
+    protected Metadata metadata;
+
+    /**
+     * @param scope name of the index the dead letters belong to, e.g. the indexing host
+     */
+    public DeadLetterStore(String scope) {
+        prefix = PREFIX + scope + ".";
+        failurePrefix = FAILURE_PREFIX + scope + ".";
+        persistence = AppBeans.get(Persistence.NAME);
+        metadata = AppBeans.get(Metadata.NAME);
+    }
+
+    /**
+     * Saves the dead letters replacing the existing ones of the same instances and removes their failures.
+     * New dead letters are saved only while the number of stored ones is below the limit. Invocations are
+     * serialized, so that concurrent workers do not exceed the limit.
+     *
+     * @param maxCount maximum number of stored dead letters
+     * @return saved dead letters
+     */
+    public synchronized List<DeadLetter> save(Collection<DeadLetter> deadLetters, int maxCount) {
+        List<DeadLetter> saved = new ArrayList<>(deadLetters.size());
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            Query countQuery = em.createQuery("select count(c) from sys$Config c where c.name like :name");
+            countQuery.setParameter("name", prefix + "%");
+            long count = ((Number) countQuery.getSingleResult()).longValue();
+            for (DeadLetter deadLetter : deadLetters) {
+                String name = getName(prefix, deadLetter.getEntityName(), deadLetter.getEntityId());
+                if (findValue(em, name) != null)
+                    delete(em, deadLetter.getEntityName(), deadLetter.getEntityId());
+                else if (count < maxCount)
+                    count++;
+                else
+                    continue;
+                deleteValue(em, getName(failurePrefix, deadLetter.getEntityName(), deadLetter.getEntityId()));
+                persist(em, name, deadLetter);
+                saved.add(deadLetter);
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+        return saved;
+    }
+
+    /**
+     * Saves the failed attempts replacing the previous ones of the same instances.
+     */
+    public void saveFailures(Collection<DeadLetter> failures) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            for (DeadLetter failure : failures) {
+                String name = getName(failurePrefix, failure.getEntityName(), failure.getEntityId());
+                deleteValue(em, name);
+                persist(em, name, failure);
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * Removes the failed attempts of the instances that have been indexed.
+     */
+    public void deleteFailures(String entityName, Collection<UUID> entityIds) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            for (UUID entityId : entityIds) {
+                deleteValue(em, getName(failurePrefix, entityName, entityId));
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * @return all dead letters ordered by the time of the last failure
+     */
+    public List<DeadLetter> load() {
+        return load(prefix);
+    }
+
+    /**
+     * @return the last failed attempts of the instances that have not been given up, ordered by the time
+     */
+    public List<DeadLetter> loadFailures() {
+        return load(failurePrefix);
+    }
+
+    protected List<DeadLetter> load(String prefix) {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        Transaction tx = persistence.createTransaction();
+        try {
+            Query query = persistence.getEntityManager().createQuery(
+                    "select c.name, c.value from sys$Config c where c.name like :name");
+            query.setParameter("name", prefix + "%");
+            List<Object[]> list = query.getResultList();
+            for (Object[] row : list) {
+                String name = (String) row[0];
+                // "_" in the pattern matches any character
+                if (!name.startsWith(prefix))
+                    continue;
+                int dot = name.lastIndexOf('.');
+                deadLetters.add(DeadLetter.decode(name.substring(prefix.length(), dot),
+                        UUID.fromString(name.substring(dot + 1)), (String) row[1]));
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+
+        Collections.sort(deadLetters, new Comparator<DeadLetter>() {
+            @Override
+            public int compare(DeadLetter d1, DeadLetter d2) {
+                return Long.compare(d1.getFailedAt(), d2.getFailedAt());
+            }
+        });
+        return deadLetters;
+    }
+
+    /**
+     * @return dead letter of the instance or null if there is none
+     */
+    @Nullable
+    public DeadLetter find(String entityName, UUID entityId) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            String value = findValue(persistence.getEntityManager(), getName(prefix, entityName, entityId));
+            tx.commit();
+            return value != null ? DeadLetter.decode(entityName, entityId, value) : null;
+        } finally {
+            tx.end();
+        }
+    }
+
+    @Nullable
+    protected String findValue(EntityManager em, String name) {
+        Query query = em.createQuery("select c.value from sys$Config c where c.name = :name");
+        query.setParameter("name", name);
+        List<String> list = query.getResultList();
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    public void delete(EntityManager em, String entityName, UUID entityId) {
+        deleteValue(em, getName(prefix, entityName, entityId));
+    }
+
+    protected void deleteValue(EntityManager em, String name) {
+        Query query = em.createQuery("delete from sys$Config c where c.name = :name");
+        query.setParameter("name", name);
+        query.executeUpdate();
+    }
+
+    protected void persist(EntityManager em, String name, DeadLetter deadLetter) {
+        Config config = metadata.create(Config.class);
+        config.setName(name);
+        config.setValue(deadLetter.encode());
+        em.persist(config);
+    }
+
+    protected String getName(String prefix, String entityName, UUID entityId) {
+        return prefix + entityName + "." + entityId;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FileDescriptor;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of the text extracted from files. An entry is keyed by the file descriptor id, size and creation
+ * date, so a changed file gets a new entry. When the total size of the cache exceeds the limit, least recently used
+ * entries are removed.
+ *
+ * @version $Id$
+ */
+public class FileContentCache {
+
+    private static Log log = LogFactory.getLog(FileContentCache.class);
+
+    protected static final String EXT = ".txt.gz";
+
+    protected static final int WRITE_CHUNK = 8192;
+
+    protected File dir;
+
+    protected long maxSize;
+
+    protected final AtomicLong size = new AtomicLong();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    public FileContentCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (!dir.exists() && !dir.mkdirs())
+            throw new RuntimeException("Directory " + dir + " doesn't exist and can not be created");
+        size.set(FileUtils.sizeOfDirectory(dir));
+    }
+
+    /**
+     * @return cached text of the file or null if the file has not been cached yet
+     */
+    @Nullable
+    public String get(FileDescriptor fileDescriptor) {
+        File file = getFile(fileDescriptor);
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+            String content = IOUtils.toString(reader);
+            // LRU order is kept by the modification time
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return content;
+        } catch (IOException e) {
+            log.warn("Unable to read cached content of file " + fileDescriptor.getId() + ": " + e);
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    public void put(FileDescriptor fileDescriptor, String content) {
+        put(fileDescriptor, content, 0);
+    }
+
+    /**
+     * Stores the content starting at the given position, writing it by small chunks to avoid a copy of the whole
+     * text.
+     */
+    public void put(FileDescriptor fileDescriptor, CharSequence content, int start) {
+        File file = getFile(fileDescriptor);
+        File tmpFile = null;
+        Writer writer = null;
+        try {
+            tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+            writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmpFile)), "UTF-8");
+            for (int i = start; i < content.length(); i += WRITE_CHUNK) {
+                writer.append(content, i, Math.min(i + WRITE_CHUNK, content.length()));
+            }
+            writer.close();
+            writer = null;
+
+            // concurrent writers of the same entry produce the same content, so the last rename wins
+            long length = tmpFile.length();
+            if (file.exists()) {
+                long existing = file.length();
+                if (file.delete())
+                    size.addAndGet(-existing);
+            }
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            tmpFile = null;
+
+            if (size.addAndGet(length) > maxSize)
+                evict();
+        } catch (IOException e) {
+            log.warn("Unable to cache content of file " + fileDescriptor.getId() + ": " + e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+            if (tmpFile != null)
+                FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
+    /**
+     * Removes least recently used entries until the cache size goes below 90% of the limit.
+     */
+    protected synchronized void evict() {
+        if (size.get() <= maxSize)
+            return;
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXT);
+            }
+        });
+        if (files == null)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        long target = maxSize / 10 * 9;
+        int removed = 0;
+        for (File file : files) {
+            if (total <= target)
+                break;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                removed++;
+            }
+        }
+        size.set(total);
+        log.debug("Removed " + removed + " entries from file content cache, size is " + total + " bytes now");
+    }
+
+    public void clear() {
+        try {
+            FileUtils.cleanDirectory(dir);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to clear file content cache", e);
+        }
+        size.set(0);
+    }
+
+    protected File getFile(FileDescriptor fileDescriptor) {
+        long createTs = fileDescriptor.getCreateDate() != null ? fileDescriptor.getCreateDate().getTime() : 0;
+        return new File(dir, fileDescriptor.getId() + "-" + fileDescriptor.getSize() + "-" + createTs + EXT);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+/**
+ * Thrown when a file exceeds the size or time budget of content extraction. The entity is indexed without
+ * the file content in this case.
+ *
+ * @version $Id$
+ */
+public class FileLimitExceededException extends IndexingException {
+
+    private static final long serialVersionUID = 4125180467521372263L;
+
+    public FileLimitExceededException(String message) {
+        super(null, null, message, EntityType.FILE, null);
+    }
+}
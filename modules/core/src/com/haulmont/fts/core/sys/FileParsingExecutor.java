@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool parsing file content. A parser that exceeds the time limit can not be stopped if it ignores
+ * interruption, so its thread is abandoned: the pool starts an additional thread instead and shrinks back
+ * when the abandoned parser finishes.
+ *
+ * @version $Id$
+ */
+public class FileParsingExecutor extends ThreadPoolExecutor {
+
+    private static Log log = LogFactory.getLog(FileParsingExecutor.class);
+
+    protected int abandonedCount;
+
+    public FileParsingExecutor(int threads, int queueCapacity, ThreadFactory threadFactory) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                threadFactory);
+    }
+
+    /**
+     * Replaces the thread running a parser that has exceeded the time limit.
+     */
+    public synchronized void workerAbandoned() {
+        abandonedCount++;
+        setMaximumPoolSize(getMaximumPoolSize() + 1);
+        setCorePoolSize(getCorePoolSize() + 1);
+        log.warn(abandonedCount + " file parsing threads are still busy with files that exceeded the time limit");
+    }
+
+    /**
+     * Removes the replacement of the thread when its abandoned parser finishes.
+     */
+    public synchronized void workerReleased() {
+        abandonedCount--;
+        setCorePoolSize(getCorePoolSize() - 1);
+        setMaximumPoolSize(getMaximumPoolSize() - 1);
+    }
+
+    public synchronized int getAbandonedCount() {
+        return abandonedCount;
+    }
+}
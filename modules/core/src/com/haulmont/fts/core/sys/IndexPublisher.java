@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Publishes commits of the index to a directory shared with replica nodes.
+ * <p>The last commit is held by the {@link SnapshotDeletionPolicy} of the writer while its files are copied,
+ * so merges do not delete them. Only the files that have not been published yet are copied, then the
+ * {@link IndexRevision} is replaced and the files of older revisions are deleted. The files of the previous revision
+ * are kept, as replicas may still be copying it.</p>
+ *
+ * @version $Id$
+ */
+public class IndexPublisher {
+
+    private static Log log = LogFactory.getLog(IndexPublisher.class);
+
+    protected File publishDir;
+
+    protected volatile boolean newEpoch;
+
+    public IndexPublisher(File publishDir) {
+        this.publishDir = publishDir;
+    }
+
+    /**
+     * Makes the next publication start a new epoch, must be invoked when the index is recreated.
+     */
+    public void reset() {
+        newEpoch = true;
+    }
+
+    /**
+     * Publishes the last commit of the writer if it has not been published yet.
+     *
+     * @param writer    writer created with the {@link SnapshotDeletionPolicy}
+     * @param indexDir  directory of the writer
+     * @return whether a new revision has been published
+     */
+    public synchronized boolean publish(IndexWriter writer, File indexDir) throws IOException {
+        IndexDeletionPolicy policy = writer.getConfig().getIndexDeletionPolicy();
+        if (!(policy instanceof SnapshotDeletionPolicy))
+            throw new IllegalStateException("Index writer does not support snapshots");
+        SnapshotDeletionPolicy snapshots = (SnapshotDeletionPolicy) policy;
+
+        IndexCommit commit;
+        try {
+            commit = snapshots.snapshot();
+        } catch (IllegalStateException e) {
+            // nothing committed yet
+            return false;
+        }
+        try {
+            IndexRevision published = IndexRevision.read(publishDir);
+            // generation of a recreated index starts anew
+            boolean sameEpoch = published != null && !newEpoch && published.getGeneration() <= commit.getGeneration();
+            if (sameEpoch && published.getGeneration() == commit.getGeneration())
+                return false;
+
+            IndexRevision revision = new IndexRevision(
+                    sameEpoch ? published.getEpoch() : UUID.randomUUID().toString(),
+                    published != null ? published.getRevision() + 1 : 1,
+                    commit.getGeneration(), commit.getSegmentsFileName());
+            FileUtils.forceMkdir(publishDir);
+            if (!sameEpoch)
+                FileUtils.cleanDirectory(publishDir);
+
+            int copied = 0;
+            for (String name : commit.getFileNames()) {
+                File src = new File(indexDir, name);
+                File dst = new File(publishDir, name);
+                if (!dst.exists() || dst.length() != src.length()) {
+                    FileUtils.copyFile(src, dst);
+                    copied++;
+                }
+                revision.addFile(name, src.length());
+            }
+            revision.write(publishDir);
+            newEpoch = false;
+
+            Set<String> keptFiles = new HashSet<>(revision.getFiles().keySet());
+            keptFiles.add(IndexRevision.FILE_NAME);
+            if (sameEpoch)
+                keptFiles.addAll(published.getFiles().keySet());
+            String[] names = publishDir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (!keptFiles.contains(name))
+                        FileUtils.deleteQuietly(new File(publishDir, name));
+                }
+            }
+            log.debug("Published " + revision + ", " + copied + " files copied");
+            return true;
+        } finally {
+            snapshots.release(commit);
+            writer.deleteUnusedFiles();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.Entity;
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Builds a new index in a shadow directory by {@link BulkIndexer}, while the current index is still searched and
+ * updated from the queue. The changes indexed from the queue meanwhile are replayed to the new index by
+ * {@link #finish(QueueCoalescer)}, which also retries the instances failed during bulk indexing. After that the new
+ * index can replace the current one.
+ *
+ * @version $Id$
+ */
+public abstract class IndexRebuilder {
+
+    private static Log log = LogFactory.getLog(IndexRebuilder.class);
+
+    protected File shadowDir;
+
+    protected ExecutorService executor;
+
+    protected int threads;
+
+    protected double ramBufferSize;
+
+    protected int chunkSize;
+
+    protected volatile BulkIndexer bulkIndexer;
+
+    /**
+     * Instances failed during bulk indexing, accessed by the rebuilding thread only.
+     */
+    protected final QueueCoalescer failures = new QueueCoalescer();
+
+    protected LuceneIndexer indexer;
+
+    protected IndexWriter writer;
+
+    public IndexRebuilder(File shadowDir, ExecutorService executor, int threads, double ramBufferSize,
+                          int chunkSize) {
+        this.shadowDir = shadowDir;
+        this.executor = executor;
+        this.threads = threads;
+        this.ramBufferSize = ramBufferSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Indexes all instances of the entities to the shadow directory and invokes {@link #complete()}.
+     * The new index is discarded if rebuilding fails.
+     *
+     * @return number of indexed instances
+     */
+    public int rebuild(Collection<String> entityNames) throws IOException {
+        try {
+            FileUtils.deleteDirectory(shadowDir);
+            Directory directory = FSDirectory.open(shadowDir);
+            writer = LuceneWriter.createBulkWriter(directory, ramBufferSize, threads);
+
+            indexer = createIndexer(directory, writer);
+            bulkIndexer = new BulkIndexer(indexer, executor, threads, chunkSize) {
+                @Override
+                protected boolean accept(String entityName, Entity entity) {
+                    return IndexRebuilder.this.accept(entityName, entity);
+                }
+
+                @Override
+                protected void failed(String entityName, Map<UUID, IndexingException> errors) {
+                    for (UUID entityId : errors.keySet()) {
+                        failures.add(entityName, entityId, FtsChangeType.UPDATE);
+                    }
+                }
+            };
+            int count = 0;
+            for (String entityName : entityNames) {
+                count += bulkIndexer.index(entityName);
+            }
+
+            complete();
+            return count;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.rollback();
+                } catch (IOException e) {
+                    log.error("Error closing index writer", e);
+                }
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Indexes the changes made during rebuilding and retries the instances failed during bulk indexing, then
+     * commits and closes the new index.
+     *
+     * @return changes that have not been indexed again, they must be put to the queue after the new index
+     * replaces the current one
+     */
+    public QueueCoalescer finish(QueueCoalescer journal) throws IOException {
+        log.info("Replaying " + journal.getCoalescedCount() + " changes made during rebuilding, retrying "
+                + failures.getCoalescedCount() + " failed instances");
+        // a later change of a failed instance takes precedence
+        QueueCoalescer changes = new QueueCoalescer();
+        addAll(changes, failures);
+        addAll(changes, journal);
+
+        QueueCoalescer unindexed = new QueueCoalescer();
+        for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : changes.getChanges().entrySet()) {
+            Map<UUID, FtsChangeType> updates = toUpdates(entry.getValue());
+            Map<UUID, IndexingException> errors = indexer.indexEntities(entry.getKey(), updates);
+            for (Map.Entry<UUID, IndexingException> error : errors.entrySet()) {
+                // failures of file content are not retried by the queue either
+                if (error.getValue().getEntityType() != IndexingException.EntityType.FILE)
+                    unindexed.add(entry.getKey(), error.getKey(), updates.get(error.getKey()));
+            }
+        }
+        writer.commit();
+        writer.close();
+        writer = null;
+        return unindexed;
+    }
+
+    protected void addAll(QueueCoalescer target, QueueCoalescer source) {
+        for (Map.Entry<String, Map<UUID, FtsChangeType>> entry : source.getChanges().entrySet()) {
+            for (Map.Entry<UUID, FtsChangeType> change : entry.getValue().entrySet()) {
+                target.add(entry.getKey(), change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    public File getShadowDir() {
+        return shadowDir;
+    }
+
+    /**
+     * @return progress of indexing or null if it has not started yet
+     */
+    @Nullable
+    public String getStatus() {
+        BulkIndexer indexer = bulkIndexer;
+        return indexer != null ? indexer.getStatus() : null;
+    }
+
+    protected Map<UUID, FtsChangeType> toUpdates(Map<UUID, FtsChangeType> changes) {
+        Map<UUID, FtsChangeType> result = new LinkedHashMap<>();
+        for (Map.Entry<UUID, FtsChangeType> entry : changes.entrySet()) {
+            result.put(entry.getKey(),
+                    FtsChangeType.DELETE.equals(entry.getValue()) ? FtsChangeType.DELETE : FtsChangeType.UPDATE);
+        }
+        return result;
+    }
+
+    /**
+     * @return whether the loaded instance must be indexed
+     */
+    protected boolean accept(String entityName, Entity entity) {
+        return true;
+    }
+
+    protected abstract LuceneIndexer createIndexer(Directory directory, IndexWriter writer);
+
+    /**
+     * Invoked when all instances are indexed. Must stop collecting the changes from the queue, invoke
+     * {@link #finish(QueueCoalescer)} and replace the current index by the shadow directory.
+     */
+    protected abstract void complete() throws IOException;
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replication of the index through a shared directory. The primary node publishes its commits by
+ * {@link IndexPublisher} in background, replicas copy the last published commit by {@link IndexReplicator}.
+ *
+ * @version $Id$
+ */
+public class IndexReplication {
+
+    private static Log log = LogFactory.getLog(IndexReplication.class);
+
+    protected File indexDir;
+
+    protected IndexPublisher publisher;
+
+    protected IndexReplicator replicator;
+
+    protected ExecutorService executor;
+
+    protected final AtomicBoolean publishPending = new AtomicBoolean();
+
+    /**
+     * @param executor  single thread executor publishing the commits
+     */
+    public IndexReplication(File replicationDir, File indexDir, ExecutorService executor) {
+        this.indexDir = indexDir;
+        this.executor = executor;
+        publisher = new IndexPublisher(replicationDir);
+        replicator = new IndexReplicator(replicationDir);
+    }
+
+    /**
+     * Publishes the last commit in background. Commits made while publishing are published by the next run.
+     */
+    public void publishAsync() {
+        if (!publishPending.compareAndSet(false, true))
+            return;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                publishPending.set(false);
+                publish();
+            }
+        });
+    }
+
+    public void publish() {
+        IndexWriter writer = getIndexWriter();
+        if (writer == null)
+            return;
+        try {
+            publisher.publish(writer, indexDir);
+        } catch (AlreadyClosedException e) {
+            log.debug("Index writer has been closed during publishing");
+        } catch (Throwable e) {
+            log.error("Error publishing FTS index", e);
+        }
+    }
+
+    /**
+     * Makes the next publication start a new epoch, must be invoked when the index is recreated.
+     */
+    public void reset() {
+        publisher.reset();
+    }
+
+    /**
+     * Copies the last commit published by the primary node.
+     *
+     * @return whether the index directory has changed
+     */
+    public boolean replicate() throws IOException {
+        IndexRevision local = IndexRevision.read(indexDir);
+        if (!replicator.replicate(indexDir))
+            return false;
+        if (!IndexRevision.read(indexDir).isSameEpoch(local))
+            indexReplaced();
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the current writer of the index on the primary node, or null if it is closed
+     */
+    @Nullable
+    protected IndexWriter getIndexWriter() {
+        return null;
+    }
+
+    /**
+     * Invoked when the local index directory has been replaced by a new epoch. The readers must be opened again,
+     * because reopening would reuse segments having the same names as the new ones.
+     */
+    protected void indexReplaced() {
+    }
+}
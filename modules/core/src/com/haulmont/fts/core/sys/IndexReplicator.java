@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Copies revisions published by {@link IndexPublisher} to the local index directory of a replica node.
+ * <p>Only new files are copied. The segments file is copied last and only if the revision has not been replaced
+ * while copying, so the local directory always contains a complete commit. Files are replaced rather than
+ * overwritten, because open readers may still use them.</p>
+ * <p>Files of a new epoch may have the same names as the local ones, so a new epoch is copied to a separate
+ * directory which replaces the local one only when the copy is complete.</p>
+ *
+ * @version $Id$
+ */
+public class IndexReplicator {
+
+    private static Log log = LogFactory.getLog(IndexReplicator.class);
+
+    protected File publishDir;
+
+    public IndexReplicator(File publishDir) {
+        this.publishDir = publishDir;
+    }
+
+    /**
+     * Copies the last published revision if it is newer than the local one.
+     *
+     * @return whether the local index has been updated
+     */
+    public synchronized boolean replicate(File indexDir) throws IOException {
+        IndexRevision published = IndexRevision.read(publishDir);
+        if (published == null)
+            return false;
+
+        IndexRevision local = IndexRevision.read(indexDir);
+        boolean sameEpoch = published.isSameEpoch(local);
+        if (sameEpoch && local.getRevision() >= published.getRevision())
+            return false;
+
+        File targetDir = sameEpoch ? indexDir : new File(indexDir.getPath() + "-replica");
+        if (!sameEpoch)
+            FileUtils.deleteDirectory(targetDir);
+        FileUtils.forceMkdir(targetDir);
+
+        int copied = 0;
+        try {
+            for (Map.Entry<String, Long> entry : published.getFiles().entrySet()) {
+                String name = entry.getKey();
+                if (name.equals(published.getSegmentsFile()))
+                    continue;
+                File dst = new File(targetDir, name);
+                if (dst.exists() && dst.length() == entry.getValue())
+                    continue;
+                copy(name, entry.getValue(), targetDir);
+                copied++;
+            }
+
+            if (isReplaced(published)) {
+                log.debug("Revision " + published.getRevision() + " has been replaced while copying");
+                return false;
+            }
+            copy(published.getSegmentsFile(), published.getFiles().get(published.getSegmentsFile()), targetDir);
+        } catch (IOException e) {
+            // the publisher has deleted or replaced the files of a replaced revision
+            if (isReplaced(published)) {
+                log.debug("Revision " + published.getRevision() + " has been replaced while copying");
+                return false;
+            }
+            throw e;
+        }
+        published.write(targetDir);
+
+        if (sameEpoch) {
+            String[] names = indexDir.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (!published.getFiles().containsKey(name) && !IndexRevision.FILE_NAME.equals(name)
+                            && !IndexWriter.WRITE_LOCK_NAME.equals(name))
+                        FileUtils.deleteQuietly(new File(indexDir, name));
+                }
+            }
+        } else {
+            replaceIndex(targetDir, indexDir);
+        }
+        log.debug("Replicated " + published + ", " + (copied + 1) + " files copied");
+        return true;
+    }
+
+    protected boolean isReplaced(IndexRevision revision) throws IOException {
+        IndexRevision current = IndexRevision.read(publishDir);
+        return current == null || !current.isSameEpoch(revision) || current.getRevision() != revision.getRevision();
+    }
+
+    /**
+     * Replaces the local index directory by the directory containing the complete copy of a new epoch. If the local
+     * directory can not be replaced, it is kept.
+     */
+    protected void replaceIndex(File newDir, File indexDir) throws IOException {
+        File oldDir = new File(indexDir.getPath() + "-old");
+        FileUtils.deleteDirectory(oldDir);
+        if (indexDir.exists() && !indexDir.renameTo(oldDir))
+            throw new IOException("Unable to rename " + indexDir + " to " + oldDir);
+        if (!newDir.renameTo(indexDir)) {
+            if (oldDir.exists() && !oldDir.renameTo(indexDir))
+                log.error("Unable to restore index directory " + indexDir + " from " + oldDir);
+            throw new IOException("Unable to rename " + newDir + " to " + indexDir);
+        }
+        FileUtils.deleteQuietly(oldDir);
+    }
+
+    protected void copy(String name, long length, File indexDir) throws IOException {
+        File src = new File(publishDir, name);
+        File tmp = new File(indexDir, name + ".tmp");
+        File dst = new File(indexDir, name);
+        FileUtils.copyFile(src, tmp);
+        if (tmp.length() != length) {
+            FileUtils.deleteQuietly(tmp);
+            throw new IOException("File " + src + " has been changed while copying");
+        }
+        if (dst.exists())
+            FileUtils.forceDelete(dst);
+        if (!tmp.renameTo(dst))
+            throw new IOException("Unable to rename " + tmp + " to " + dst);
+    }
+}
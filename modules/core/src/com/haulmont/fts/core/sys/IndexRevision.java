@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Index commit published for replication: the commit generation, its segments file and the files it consists of
+ * with their lengths. Stored in the {@link #FILE_NAME} file of the published and replicated index directories.
+ * <p>Revisions of the same epoch belong to the same index, so a file with the same name has the same content.
+ * A new epoch starts when the index is recreated.</p>
+ *
+ * @version $Id$
+ */
+public class IndexRevision {
+
+    public static final String FILE_NAME = "revision.properties";
+
+    protected static final String EPOCH = "epoch";
+    protected static final String REVISION = "revision";
+    protected static final String GENERATION = "generation";
+    protected static final String SEGMENTS_FILE = "segmentsFile";
+    protected static final String FILE_PREFIX = "file.";
+
+    protected String epoch;
+
+    protected long revision;
+
+    protected long generation;
+
+    protected String segmentsFile;
+
+    protected Map<String, Long> files = new LinkedHashMap<>();
+
+    public IndexRevision(String epoch, long revision, long generation, String segmentsFile) {
+        this.epoch = epoch;
+        this.revision = revision;
+        this.generation = generation;
+        this.segmentsFile = segmentsFile;
+    }
+
+    /**
+     * @return revision stored in the directory or null if there is none
+     */
+    @Nullable
+    public static IndexRevision read(File dir) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists())
+            return null;
+
+        Properties properties = new Properties();
+        InputStream stream = new FileInputStream(file);
+        try {
+            properties.load(stream);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        IndexRevision revision = new IndexRevision(properties.getProperty(EPOCH),
+                Long.parseLong(properties.getProperty(REVISION)), Long.parseLong(properties.getProperty(GENERATION)),
+                properties.getProperty(SEGMENTS_FILE));
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(FILE_PREFIX))
+                revision.addFile(name.substring(FILE_PREFIX.length()), Long.parseLong(properties.getProperty(name)));
+        }
+        return revision;
+    }
+
+    /**
+     * Writes the revision to the directory, replacing the previous one only when the new content has been written
+     * completely.
+     */
+    public void write(File dir) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(EPOCH, epoch);
+        properties.setProperty(REVISION, String.valueOf(revision));
+        properties.setProperty(GENERATION, String.valueOf(generation));
+        properties.setProperty(SEGMENTS_FILE, segmentsFile);
+        for (Map.Entry<String, Long> entry : files.entrySet()) {
+            properties.setProperty(FILE_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        File file = new File(dir, FILE_NAME);
+        File tmpFile = new File(dir, FILE_NAME + ".tmp");
+        OutputStream stream = new FileOutputStream(tmpFile);
+        try {
+            properties.store(stream, null);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        if (file.exists() && !file.delete()) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException("Unable to delete " + file);
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Unable to rename " + tmpFile + " to " + file);
+    }
+
+    public boolean isSameEpoch(@Nullable IndexRevision other) {
+        return other != null && epoch.equals(other.epoch);
+    }
+
+    public void addFile(String name, long length) {
+        files.put(name, length);
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getSegmentsFile() {
+        return segmentsFile;
+    }
+
+    /**
+     * @return names and lengths of the commit files including the segments file
+     */
+    public Map<String, Long> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    @Override
+    public String toString() {
+        return "revision " + revision + " (generation " + generation + ", epoch " + epoch + ")";
+    }
+}
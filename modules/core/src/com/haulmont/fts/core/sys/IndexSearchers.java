@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Searchers of the index provided by a near-real-time {@link SearcherManager}, which is created on the first search
+ * and refreshed in background.
+ * <p>Every acquired searcher holds a read lock until it is released. The write lock is held while the manager is
+ * closed or the index is replaced, so the readers in use are not closed or moved under searches.</p>
+ *
+ * @version $Id$
+ */
+public abstract class IndexSearchers {
+
+    private static Log log = LogFactory.getLog(IndexSearchers.class);
+
+    protected static final long LOCK_TIMEOUT = 60000;
+
+    protected volatile SearcherManager searcherManager;
+
+    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    protected long refreshInterval;
+
+    protected ThreadFactory threadFactory;
+
+    protected ScheduledExecutorService refreshExecutor;
+
+    /**
+     * @param refreshInterval   period of the background refresh in milliseconds
+     * @param threadFactory     factory of the background refresh thread
+     */
+    public IndexSearchers(long refreshInterval, ThreadFactory threadFactory) {
+        this.refreshInterval = refreshInterval;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return the searcher manager, created if it has been closed
+     */
+    public SearcherManager getSearcherManager() {
+        if (searcherManager == null) {
+            synchronized (this) {
+                if (searcherManager == null) {
+                    try {
+                        searcherManager = createSearcherManager();
+                    } catch (IOException e) {
+                        throw new RuntimeException("Unable to open index searcher", e);
+                    }
+                    startRefresh();
+                }
+            }
+        }
+        return searcherManager;
+    }
+
+    public boolean isOpen() {
+        return searcherManager != null;
+    }
+
+    protected synchronized void startRefresh() {
+        if (refreshExecutor != null)
+            return;
+
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshInBackground();
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes the changes of the index visible to the searchers acquired afterwards, if the manager is open.
+     */
+    public void refresh() {
+        SearcherManager manager = searcherManager;
+        if (manager == null)
+            return;
+        try {
+            manager.maybeRefresh();
+        } catch (AlreadyClosedException e) {
+            log.debug("Searcher manager has been closed during refresh");
+        } catch (Throwable e) {
+            log.error("Error refreshing FTS searcher", e);
+        }
+    }
+
+    /**
+     * Acquires a searcher, it must be released by {@link #release(IndexSearcher)}.
+     */
+    public IndexSearcher acquire() {
+        lock.readLock().lock();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return getSearcherManager().acquire();
+                } catch (AlreadyClosedException e) {
+                    // closed after the searches did not complete in time, the next manager is taken
+                    if (attempt >= 3)
+                        throw e;
+                    log.debug("Searcher manager has been closed, acquiring the searcher again");
+                }
+            }
+        } catch (IOException e) {
+            lock.readLock().unlock();
+            throw new RuntimeException("Unable to acquire index searcher", e);
+        } catch (RuntimeException e) {
+            lock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    public void release(IndexSearcher searcher) {
+        try {
+            // the searcher may belong to an already replaced manager, it only needs its reader to be decRef'ed
+            searcher.getIndexReader().decRef();
+        } catch (IOException e) {
+            log.error("Error releasing index searcher", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the acquired searchers to be released and blocks acquiring new ones, but no longer than
+     * {@link #LOCK_TIMEOUT}.
+     *
+     * @return whether the lock is acquired and must be released by {@link #unlock()}
+     */
+    public boolean lock() {
+        try {
+            if (lock.writeLock().tryLock(LOCK_TIMEOUT, TimeUnit.MILLISECONDS))
+                return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.warn("Searches in progress have not completed in " + LOCK_TIMEOUT + " ms, proceeding anyway");
+        return false;
+    }
+
+    public void unlock() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Closes the searcher manager after the acquired searchers are released, the next search creates a new one.
+     */
+    public void close() {
+        boolean locked = lock();
+        try {
+            SearcherManager manager = searcherManager;
+            searcherManager = null;
+            closed();
+            if (manager != null) {
+                try {
+                    manager.close();
+                } catch (IOException e) {
+                    log.error("Error closing searcher manager", e);
+                }
+            }
+        } finally {
+            if (locked)
+                unlock();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (refreshExecutor != null)
+            refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Creates the searcher manager, invoked on the first search after the manager has been closed.
+     */
+    protected abstract SearcherManager createSearcherManager() throws IOException;
+
+    /**
+     * Invoked periodically by the background thread.
+     */
+    protected void refreshInBackground() {
+        refresh();
+    }
+
+    /**
+     * Invoked when the searcher manager is closed, while new searchers can not be acquired.
+     */
+    protected void closed() {
+    }
+}
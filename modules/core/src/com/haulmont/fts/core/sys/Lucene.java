@@ -13,6 +13,8 @@ public class Lucene {
     public static final String FLD_ALL = "all";
     public static final String FLD_LINKS = "links";
     public static final String FLD_MORPHOLOGY_ALL = "morphologyAll";
+    public static final String FLD_CAPTION = "caption";
+    public static final String FLD_SECURITY = "security";
 
     protected Directory directory;
 
@@ -4,12 +4,13 @@
  */
 package com.haulmont.fts.core.sys;
 
-import com.haulmont.bali.datastruct.Pair;
 import com.haulmont.chile.core.model.Instance;
 import com.haulmont.chile.core.model.MetaClass;
+import com.haulmont.chile.core.model.MetaProperty;
 import com.haulmont.chile.core.model.utils.InstanceUtils;
 import com.haulmont.cuba.core.EntityManager;
 import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
 import com.haulmont.cuba.core.Transaction;
 import com.haulmont.cuba.core.app.FileStorageAPI;
 import com.haulmont.cuba.core.entity.Entity;
@@ -17,16 +18,22 @@ import com.haulmont.cuba.core.entity.FileDescriptor;
 import com.haulmont.cuba.core.entity.FtsChangeType;
 import com.haulmont.cuba.core.global.AppBeans;
 import com.haulmont.cuba.core.global.FileStorageException;
+import com.haulmont.cuba.core.global.View;
+import com.haulmont.cuba.core.global.ViewProperty;
 import com.haulmont.fts.global.FTS;
 import com.haulmont.fts.global.ValueFormatter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.poi.poifs.filesystem.OfficeXmlFileException;
@@ -40,22 +47,42 @@ import org.apache.tika.parser.pdf.PDFParser;
 import org.apache.tika.parser.rtf.RTFParser;
 import org.apache.tika.parser.txt.TXTParser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.xml.sax.SAXException;
 
-import java.io.ByteArrayInputStream;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class LuceneIndexer extends LuceneWriter {
 
     private static Log log = LogFactory.getLog(LuceneIndexer.class);
 
+    protected static final int LOAD_CHUNK = 100;
+
     private Map<String, EntityDescr> descriptions;
 
     private boolean storeContentInIndex;
 
-    private List<Pair<String, UUID>> deleteQueue = new ArrayList<>();
+    protected int maxFileContentLength = -1;
+
+    protected FileContentCache fileContentCache;
+
+    protected FileParsingExecutor fileParsingExecutor;
+
+    protected long fileParsingTimeout;
+
+    protected long maxFileSize;
+
+    protected boolean storeInstanceName;
+
+    protected Map<String, String> securityProperties = Collections.emptyMap();
 
     private ValueFormatter valueFormatter;
 
@@ -65,8 +92,9 @@ public class LuceneIndexer extends LuceneWriter {
 
     protected List<DocumentCreatedListener> documentCreatedListeners = new ArrayList<>();
 
-    public LuceneIndexer(Map<String, EntityDescr> descriptions, Directory directory, boolean storeContentInIndex) {
-        super(directory);
+    public LuceneIndexer(Map<String, EntityDescr> descriptions, Directory directory, IndexWriter writer,
+                         boolean storeContentInIndex) {
+        super(directory, writer);
         this.descriptions = descriptions;
         this.storeContentInIndex = storeContentInIndex;
 
@@ -75,104 +103,314 @@ public class LuceneIndexer extends LuceneWriter {
         metadata = AppBeans.get(com.haulmont.cuba.core.global.Metadata.NAME);
     }
 
-    public void close() {
+    public void indexEntity(String entityName, UUID entityId, FtsChangeType changeType) throws IndexingException {
+        Map<UUID, IndexingException> errors = indexEntities(entityName, Collections.singletonMap(entityId, changeType));
+        if (!errors.isEmpty())
+            throw errors.get(entityId);
+    }
+
+    /**
+     * Indexes a group of instances of the same entity. The instances are loaded by {@code id in (...)} queries
+     * with a view built from the entity description, and all documents are created in a single transaction.
+     * <p>The method can be invoked concurrently from several threads, the documents are added to the shared
+     * thread-safe index writer.</p>
+     * <p>Deletions are applied immediately, so the changes must be coalesced by {@link QueueCoalescer} to contain
+     * a single change per instance. The shared index writer is not committed here, this is the responsibility
+     * of the writer owner.</p>
+     *
+     * @param entityName    entity name
+     * @param changeTypes   change types by instance id
+     * @return exceptions for the instances that have not been indexed, by instance id
+     */
+    public Map<UUID, IndexingException> indexEntities(String entityName, Map<UUID, FtsChangeType> changeTypes) {
+        Map<UUID, IndexingException> errors = new HashMap<>();
+
+        List<UUID> ids = new ArrayList<>(changeTypes.size());
+        for (Map.Entry<UUID, FtsChangeType> entry : changeTypes.entrySet()) {
+            if (FtsChangeType.DELETE.equals(entry.getValue()))
+                deleteDocument(entityName, entry.getKey(), errors);
+            else
+                ids.add(entry.getKey());
+        }
+        if (ids.isEmpty())
+            return errors;
+
+        EntityDescr descr = descriptions.get(entityName);
+        if (descr == null) {
+            log.error("No description for entity " + entityName);
+            return errors;
+        }
+
+        Map<UUID, Document> documents = new LinkedHashMap<>();
+        Transaction tx = persistence.createTransaction();
         try {
-            if (!deleteQueue.isEmpty()) {
-                log.debug("Deleting documents " + deleteQueue);
-                for (Pair<String, UUID> pair : deleteQueue) {
-                    writer.deleteDocuments(new Term(FLD_ID, pair.getSecond().toString()));
+            EntityManager em = persistence.getEntityManager();
+            // em.find() used to return soft deleted instances as well
+            em.setSoftDeletion(false);
+
+            MetaClass metaClass = metadata.getSession().getClass(entityName);
+            View view = createView(metaClass, descr);
+
+            for (int i = 0; i < ids.size(); i += LOAD_CHUNK) {
+                List<UUID> chunk = ids.subList(i, Math.min(i + LOAD_CHUNK, ids.size()));
+                Map<UUID, Entity> entities = loadEntities(em, entityName, chunk, view);
+                for (UUID entityId : chunk) {
+                    Entity entity = entities.get(entityId);
+                    if (entity == null) {
+                        log.error("Entity instance not found: " + entityName + "-" + entityId);
+                        continue;
+                    }
+                    Document doc = createDocument(entityName, entityId, entity, descr, errors);
+                    if (doc != null)
+                        documents.put(entityId, doc);
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            tx.commit();
         } finally {
-            super.close();
+            tx.end();
         }
-    }
 
-    public void indexEntity(String entityName, UUID entityId, FtsChangeType changeType) throws IndexingException {
-        if (FtsChangeType.DELETE.equals(changeType)) {
-            deleteQueue.add(new Pair<>(entityName, entityId));
-            return;
+        for (Map.Entry<UUID, Document> entry : documents.entrySet()) {
+            writeDocument(entityName, entry.getKey(), changeTypes.get(entry.getKey()), entry.getValue(), errors);
         }
-        try {
-            EntityDescr descr = descriptions.get(entityName);
-            if (descr == null) {
-                log.error("No description for entity " + entityName);
-                return;
-            }
+        return errors;
+    }
 
-            Field idField, entityField, allField, linksField, morphologyAllField;
-            Entity entity;
-            Document doc;
-            Transaction tx = persistence.createTransaction();
-            try {
-                EntityManager em = persistence.getEntityManager();
-                MetaClass metaClass = metadata.getSession().getClass(entityName);
-                entity = em.find(metaClass.getJavaClass(), entityId);
-                if (entity == null) {
-                    log.error("Entity instance not found: " + entityName + "-" + entityId);
-                    return;
-                }
+    /**
+     * Adds documents for the instances loaded by the caller, without reloading them. The instances must be loaded
+     * with the view returned by {@link #createView(String)}. Used to build a new index, so the documents are added
+     * without deleting the previous versions.
+     *
+     * @return exceptions for the instances that have not been indexed, by instance id
+     */
+    public Map<UUID, IndexingException> indexLoadedEntities(String entityName, Collection<Entity> entities) {
+        return indexLoadedEntities(entityName, entities, FtsChangeType.INSERT);
+    }
 
-                idField = new StringField(FLD_ID, entityId.toString(), Field.Store.YES);
-
-                entityField = new StringField(FLD_ENTITY, entityName, Field.Store.YES);
-
-                String allContent = createAllFieldContent(entity, descr);
-
-                allField = new TextField(
-                        FLD_ALL,
-                        allContent,
-                        storeContentInIndex ? Field.Store.YES : Field.Store.NO
-                );
-
-                morphologyAllField = new TextField(
-                        FLD_MORPHOLOGY_ALL,
-                        allContent,
-                        Field.Store.NO
-                );
-
-                linksField = new TextField(
-                        FLD_LINKS,
-                        createLinksFieldContent(entity, descr),
-                        Field.Store.YES
-                );
-
-                doc = new Document();
-                doc.add(idField);
-                doc.add(entityField);
-                doc.add(allField);
-                doc.add(linksField);
-                doc.add(morphologyAllField);
-                documentCreated(doc, entity, descr);
-
-                tx.commit();
-            } finally {
-                tx.end();
-            }
+    /**
+     * Writes documents for the instances loaded by the caller, without reloading them.
+     *
+     * @param changeType    {@link FtsChangeType#INSERT} to add documents, {@link FtsChangeType#UPDATE} to replace
+     *                      existing ones
+     * @return exceptions for the instances that have not been indexed, by instance id
+     */
+    public Map<UUID, IndexingException> indexLoadedEntities(String entityName, Collection<Entity> entities,
+                                                            FtsChangeType changeType) {
+        Map<UUID, IndexingException> errors = new HashMap<>();
+        EntityDescr descr = descriptions.get(entityName);
+        if (descr == null) {
+            log.error("No description for entity " + entityName);
+            return errors;
+        }
+        for (Entity entity : entities) {
+            UUID entityId = (UUID) entity.getId();
+            Document doc = createDocument(entityName, entityId, entity, descr, errors);
+            if (doc != null)
+                writeDocument(entityName, entityId, changeType, doc, errors);
+        }
+        return errors;
+    }
 
-            if (FtsChangeType.UPDATE.equals(changeType)) {
-                log.debug("Updating document " + entityName + "-" + entityId);
-                writer.updateDocument(new Term(FLD_ID, entityId.toString()), doc);
-            } else {
-                log.debug("Adding document " + entityName + "-" + entityId);
-                writer.addDocument(doc);
+    /**
+     * @return document or null if it can not be created, in this case the exception is put to the errors map
+     */
+    @Nullable
+    protected Document createDocument(String entityName, UUID entityId, Entity entity, EntityDescr descr,
+                                      Map<UUID, IndexingException> errors) {
+        try {
+            try {
+                return createDocument(entityName, entityId, entity, descr, true);
+            } catch (FileLimitExceededException e) {
+                // index by name only, but report the file problem to the caller
+                log.warn("File content of " + entityName + "-" + entityId + " is not indexed: " + e.getMessage());
+                errors.put(entityId, new IndexingException(entityName, entityId, e.getEntityType(), e));
+                return createDocument(entityName, entityId, entity, descr, false);
             }
-
         } catch (IndexingException e) {
             log.error("Error indexing " + entityName + "-" + entityId);
-            throw new IndexingException(entityName, entityId, e.getEntityType(), e);
-        } catch (IOException e) {
-            log.error("Error indexing " + entityName + "-" + entityId);
-            throw new IndexingException(entityName, entityId, IndexingException.EntityType.OTHER, e);
+            errors.put(entityId, new IndexingException(entityName, entityId, e.getEntityType(), e));
+            return null;
         } catch (RuntimeException e) {
             log.error("Error indexing " + entityName + "-" + entityId);
             throw e;
         }
     }
 
+    protected void writeDocument(String entityName, UUID entityId, FtsChangeType changeType, Document doc,
+                                 Map<UUID, IndexingException> errors) {
+        try {
+            writeDocument(entityName, entityId, changeType, doc);
+        } catch (IOException e) {
+            log.error("Error indexing " + entityName + "-" + entityId);
+            errors.put(entityId, new IndexingException(entityName, entityId, IndexingException.EntityType.OTHER, e));
+        }
+    }
+
+    /**
+     * @return view to load instances of the entity for indexing
+     */
+    public View createView(String entityName) {
+        MetaClass metaClass = metadata.getSession().getClass(entityName);
+        return createView(metaClass, descriptions.get(entityName));
+    }
+
+    protected void deleteDocument(String entityName, UUID entityId, Map<UUID, IndexingException> errors) {
+        log.debug("Deleting document " + entityName + "-" + entityId);
+        try {
+            writer.deleteDocuments(new Term(FLD_ID, entityId.toString()));
+        } catch (IOException e) {
+            log.error("Error deleting " + entityName + "-" + entityId);
+            errors.put(entityId, new IndexingException(entityName, entityId, IndexingException.EntityType.OTHER, e));
+        }
+    }
+
+    protected Map<UUID, Entity> loadEntities(EntityManager em, String entityName, List<UUID> ids, View view) {
+        Query query = em.createQuery("select e from " + entityName + " e where e.id in :ids");
+        query.setParameter("ids", ids);
+        query.setView(view);
+        List<Entity> list = query.getResultList();
+
+        Map<UUID, Entity> entities = new HashMap<>(list.size());
+        for (Entity entity : list) {
+            entities.put((UUID) entity.getId(), entity);
+        }
+        return entities;
+    }
+
+    /**
+     * Creates a view containing the local and link properties of the entity description, so that the instances
+     * and their linked entities are fetched by the loading query instead of being lazily loaded one by one.
+     */
+    protected View createView(MetaClass metaClass, EntityDescr descr) {
+        View view = new View(metaClass.getJavaClass(), false);
+        for (String property : descr.getPropertyNames()) {
+            addViewProperty(view, metaClass, InstanceUtils.parseValuePath(property));
+        }
+        if (storeInstanceName) {
+            // attributes of the instance name
+            View minimalView = metadata.getViewRepository().getView(metaClass, View.MINIMAL);
+            for (ViewProperty viewProperty : minimalView.getProperties()) {
+                addViewProperty(view, metaClass, new String[]{viewProperty.getName()});
+            }
+        }
+        String securityProperty = securityProperties.get(metaClass.getName());
+        if (securityProperty != null) {
+            addViewProperty(view, metaClass, InstanceUtils.parseValuePath(securityProperty));
+        }
+        if (FileDescriptor.class.isAssignableFrom(metaClass.getJavaClass())) {
+            // attributes required to load the file content
+            for (String property : new String[]{"name", "extension", "size", "createDate"}) {
+                addViewProperty(view, metaClass, new String[]{property});
+            }
+        }
+        return view;
+    }
+
+    protected void addViewProperty(View view, MetaClass metaClass, String[] propertyPath) {
+        MetaProperty metaProperty = metaClass.getProperty(propertyPath[0]);
+        if (metaProperty == null || !metadata.getTools().isPersistent(metaProperty))
+            return;
+
+        if (!metaProperty.getRange().isClass()) {
+            if (view.getProperty(metaProperty.getName()) == null)
+                view.addProperty(metaProperty.getName());
+            return;
+        }
+
+        MetaClass propertyMetaClass = metaProperty.getRange().asClass();
+        ViewProperty viewProperty = view.getProperty(metaProperty.getName());
+        View propertyView;
+        if (viewProperty != null && viewProperty.getView() != null) {
+            propertyView = viewProperty.getView();
+        } else {
+            propertyView = new View(propertyMetaClass.getJavaClass(), false);
+            view.addProperty(metaProperty.getName(), propertyView);
+        }
+        if (propertyPath.length > 1) {
+            addViewProperty(propertyView, propertyMetaClass,
+                    (String[]) ArrayUtils.subarray(propertyPath, 1, propertyPath.length));
+        }
+    }
+
+    /**
+     * @param fileContent whether to extract the content of the file if the entity is a file descriptor
+     */
+    protected Document createDocument(String entityName, UUID entityId, Entity entity, EntityDescr descr,
+                                      boolean fileContent) throws IndexingException {
+        Field idField = new StringField(FLD_ID, entityId.toString(), Field.Store.YES);
+
+        Field entityField = new StringField(FLD_ENTITY, entityName, Field.Store.YES);
+
+        String allContent = createAllFieldContent(entity, descr, fileContent);
+
+        Field allField = new TextField(
+                FLD_ALL,
+                allContent,
+                storeContentInIndex ? Field.Store.YES : Field.Store.NO
+        );
+
+        Field morphologyAllField = new TextField(
+                FLD_MORPHOLOGY_ALL,
+                allContent,
+                Field.Store.NO
+        );
+
+        Field linksField = new TextField(
+                FLD_LINKS,
+                createLinksFieldContent(entity, descr),
+                Field.Store.YES
+        );
+
+        Document doc = new Document();
+        doc.add(idField);
+        doc.add(entityField);
+        doc.add(allField);
+        doc.add(linksField);
+        doc.add(morphologyAllField);
+        if (storeInstanceName) {
+            String instanceName = getInstanceName(entity);
+            if (instanceName != null)
+                doc.add(new StoredField(FLD_CAPTION, instanceName));
+        }
+        String securityProperty = securityProperties.get(entityName);
+        if (securityProperty != null) {
+            Object value = entity.getValueEx(securityProperty);
+            doc.add(new StringField(FLD_SECURITY, SecurityFilters.getTermText(entityName, value), Field.Store.NO));
+        }
+        documentCreated(doc, entity, descr);
+        return doc;
+    }
+
+    /**
+     * @return instance name or null if it can not be evaluated on the loaded instance
+     */
+    @Nullable
+    protected String getInstanceName(Entity entity) {
+        try {
+            return entity.getInstanceName();
+        } catch (RuntimeException e) {
+            log.debug("Unable to get instance name of " + entity + ": " + e);
+            return null;
+        }
+    }
+
+    protected void writeDocument(String entityName, UUID entityId, FtsChangeType changeType, Document doc)
+            throws IOException {
+        if (FtsChangeType.UPDATE.equals(changeType)) {
+            log.debug("Updating document " + entityName + "-" + entityId);
+            writer.updateDocument(new Term(FLD_ID, entityId.toString()), doc);
+        } else {
+            log.debug("Adding document " + entityName + "-" + entityId);
+            writer.addDocument(doc);
+        }
+    }
+
     protected String createAllFieldContent(Entity entity, EntityDescr descr) throws IndexingException {
+        return createAllFieldContent(entity, descr, true);
+    }
+
+    protected String createAllFieldContent(Entity entity, EntityDescr descr, boolean fileContent)
+            throws IndexingException {
         StringBuilder sb = new StringBuilder();
 
         for (String propName : descr.getLocalProperties()) {
@@ -189,7 +427,8 @@ public class LuceneIndexer extends LuceneWriter {
         if (entity instanceof FileDescriptor) {
             appendString(sb, makeFieldName(FTS.FILE_CONT_PROP));
             sb.append(FTS.FIELD_SEP).append(((FileDescriptor) entity).getName().replaceAll("\\s+", FTS.FIELD_SEP));
-            appendFileContent(sb, (FileDescriptor) entity);
+            if (fileContent)
+                appendFileContent(sb, (FileDescriptor) entity);
         }
 
         if (log.isTraceEnabled())
@@ -201,35 +440,148 @@ public class LuceneIndexer extends LuceneWriter {
     protected void appendFileContent(StringBuilder sb, FileDescriptor fileDescriptor) throws IndexingException {
         Parser parser = getParser(fileDescriptor);
         if (parser == null) return;
-        FileStorageAPI fs = AppBeans.get(FileStorageAPI.class);
-        byte[] data;
+
+        appendString(sb, "");
+        if (fileContentCache != null) {
+            String content = fileContentCache.get(fileDescriptor);
+            if (content != null) {
+                sb.append(content);
+                return;
+            }
+        }
+
+        Integer size = fileDescriptor.getSize();
+        if (maxFileSize > 0 && size != null && size > maxFileSize)
+            throw new FileLimitExceededException("file size " + size + " exceeds " + maxFileSize + " bytes");
+
+        int start = sb.length();
+        extractFileContent(parser, fileDescriptor, sb);
+
+        if (fileContentCache != null)
+            fileContentCache.put(fileDescriptor, sb, start);
+    }
+
+    /**
+     * Extracts the file text and appends it to the builder. Without the file parsing executor the text is written
+     * to the builder directly. Otherwise it is written to a builder of the parsing task, as an abandoned parser may
+     * keep writing, and the caller waits no longer than {@link #fileParsingTimeout} since the parsing has started.
+     * On timeout the parsing thread is interrupted, its input stream is closed and the thread is replaced in
+     * the pool, as the parser may still keep it busy.
+     */
+    protected void extractFileContent(final Parser parser, final FileDescriptor fileDescriptor, StringBuilder sb)
+            throws IndexingException {
+        if (fileParsingExecutor == null) {
+            doExtractFileContent(parser, fileDescriptor, sb, new AtomicReference<InputStream>());
+            return;
+        }
+
+        final AtomicReference<InputStream> streamRef = new AtomicReference<>();
+        final AtomicLong startTime = new AtomicLong();
+        // set by the one who comes first: the finished parser or the caller giving up on it
+        final AtomicBoolean completed = new AtomicBoolean();
+        Future<StringBuilder> future;
         try {
-            data = fs.loadFile(fileDescriptor);
-        } catch (FileStorageException e) {
+            future = fileParsingExecutor.submit(new Callable<StringBuilder>() {
+                @Override
+                public StringBuilder call() throws Exception {
+                    startTime.set(System.currentTimeMillis());
+                    try {
+                        StringBuilder content = new StringBuilder();
+                        doExtractFileContent(parser, fileDescriptor, content, streamRef);
+                        return content;
+                    } finally {
+                        if (!completed.compareAndSet(false, true))
+                            fileParsingExecutor.workerReleased();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new FileLimitExceededException("file parsing queue is full");
+        }
+        try {
+            while (true) {
+                long started = startTime.get();
+                // the time spent in the queue is not counted
+                long wait = started == 0 ? fileParsingTimeout
+                        : started + fileParsingTimeout - System.currentTimeMillis();
+                try {
+                    sb.append(future.get(Math.max(wait, 1), TimeUnit.MILLISECONDS));
+                    return;
+                } catch (TimeoutException e) {
+                    started = startTime.get();
+                    if (started == 0 || System.currentTimeMillis() - started < fileParsingTimeout)
+                        continue;
+                    future.cancel(true);
+                    // parsers do not always react to interruption, but fail on a closed stream
+                    IOUtils.closeQuietly(streamRef.get());
+                    if (completed.compareAndSet(false, true))
+                        fileParsingExecutor.workerAbandoned();
+                    throw new FileLimitExceededException("parsing takes longer than " + fileParsingTimeout + " ms");
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IndexingException)
+                throw (IndexingException) e.getCause();
+            throw new IndexingException(IndexingException.EntityType.FILE, e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
             throw new IndexingException(IndexingException.EntityType.FILE, e);
         }
-        InputStream stream = new ByteArrayInputStream(data);
+    }
 
-        StringWriter stringWriter = new StringWriter();
+    protected void doExtractFileContent(Parser parser, FileDescriptor fileDescriptor, StringBuilder sb,
+                                        AtomicReference<InputStream> streamRef) throws IndexingException {
+        int start = sb.length();
         try {
-            parser.parse(stream, new BodyContentHandler(stringWriter), new Metadata(), new ParseContext());
+            parseFileContent(parser, fileDescriptor, sb, streamRef);
         } catch (OfficeXmlFileException e) {
             if (parser instanceof OfficeParser) {
-                parser = new OOXMLParser();
+                sb.setLength(start);
                 try {
-                    stream = new ByteArrayInputStream(data);
-                    stringWriter = new StringWriter();
-                    parser.parse(stream, new BodyContentHandler(stringWriter), new Metadata(), new ParseContext());
+                    parseFileContent(new OOXMLParser(), fileDescriptor, sb, streamRef);
                 } catch (Exception e1) {
                     throw new IndexingException(IndexingException.EntityType.FILE, e);
                 }
             } else {
                 throw new IndexingException(IndexingException.EntityType.FILE, e);
             }
+        } catch (IndexingException e) {
+            throw e;
         } catch (Exception e) {
             throw new IndexingException(IndexingException.EntityType.FILE, e);
         }
-        appendString(sb, stringWriter.toString());
+    }
+
+    /**
+     * Parses the file streaming it from the file storage and appends the extracted text to the builder.
+     * The text is truncated to {@link #maxFileContentLength} characters, so the memory consumption does not depend
+     * on the file size.
+     *
+     * @param streamRef receives the opened file stream, so it can be closed if parsing is aborted
+     */
+    protected void parseFileContent(Parser parser, FileDescriptor fileDescriptor, StringBuilder sb,
+                                    AtomicReference<InputStream> streamRef) throws Exception {
+        FileStorageAPI fs = AppBeans.get(FileStorageAPI.class);
+        InputStream stream;
+        try {
+            stream = fs.openStream(fileDescriptor);
+        } catch (FileStorageException e) {
+            throw new IndexingException(IndexingException.EntityType.FILE, e);
+        }
+        streamRef.set(stream);
+        WriteOutContentHandler handler = new WriteOutContentHandler(new StringBuilderWriter(sb), maxFileContentLength);
+        try {
+            parser.parse(new BufferedInputStream(stream), new BodyContentHandler(handler), new Metadata(),
+                    new ParseContext());
+        } catch (SAXException e) {
+            if (!handler.isWriteLimitReached(e))
+                throw e;
+            log.debug("Content of file " + fileDescriptor.getId() + " is truncated to "
+                    + maxFileContentLength + " characters");
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
     }
 
     protected Parser getParser(FileDescriptor fileDescriptor) {
@@ -310,6 +662,51 @@ public class LuceneIndexer extends LuceneWriter {
         sb.append(obj.toString());
     }
 
+    /**
+     * @param maxFileContentLength maximum number of characters extracted from a file, -1 means unlimited
+     */
+    public void setMaxFileContentLength(int maxFileContentLength) {
+        this.maxFileContentLength = maxFileContentLength;
+    }
+
+    /**
+     * @param fileContentCache cache of the text extracted from files, null if files must be parsed every time
+     */
+    public void setFileContentCache(@Nullable FileContentCache fileContentCache) {
+        this.fileContentCache = fileContentCache;
+    }
+
+    /**
+     * Sets the budget of file content extraction. A file exceeding it is indexed by name only.
+     *
+     * @param fileParsingExecutor executor parsing the files, null to parse in the indexing thread without a timeout
+     * @param fileParsingTimeout  maximum time in milliseconds of parsing a single file, not counting the time
+     *                            the file waits for a free parsing thread
+     * @param maxFileSize         maximum size in bytes of a parsed file, 0 means unlimited
+     */
+    public void setFileParsingBudget(@Nullable FileParsingExecutor fileParsingExecutor, long fileParsingTimeout,
+                                     long maxFileSize) {
+        this.fileParsingExecutor = fileParsingExecutor;
+        this.fileParsingTimeout = fileParsingTimeout;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param storeInstanceName whether to store the instance name in the document, so that search results
+     *                          can be shown without loading the instances
+     */
+    public void setStoreInstanceName(boolean storeInstanceName) {
+        this.storeInstanceName = storeInstanceName;
+    }
+
+    /**
+     * @param securityProperties property paths of the access-control attributes indexed as terms, by entity name
+     * @see SecurityFilters
+     */
+    public void setSecurityProperties(Map<String, String> securityProperties) {
+        this.securityProperties = securityProperties;
+    }
+
     public void addListener(DocumentCreatedListener documentCreatedListener) {
         this.documentCreatedListeners.add(documentCreatedListener);
     }
@@ -9,36 +9,45 @@ import com.haulmont.fts.global.FTS;
 import com.haulmont.fts.global.ValueFormatter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
 
 public class LuceneSearcher extends Lucene {
 
+    protected static final Set<String> LINKS_SEARCH_FIELDS = new HashSet<>(
+            Arrays.asList(FLD_ENTITY, FLD_ID, FLD_LINKS));
+
+    protected static final Set<String> CAPTION_SEARCH_FIELDS = new HashSet<>(Arrays.asList(FLD_ID, FLD_CAPTION));
+
     protected IndexSearcher searcher;
 
     protected boolean storeContentInIndex;
 
-    public LuceneSearcher(Directory directory, boolean storeContentInIndex) {
+    protected Filter filter;
+
+    public LuceneSearcher(Directory directory, IndexSearcher searcher, boolean storeContentInIndex) {
         super(directory);
+        this.searcher = searcher;
         this.storeContentInIndex = storeContentInIndex;
-        try {
-            searcher = new IndexSearcher(DirectoryReader.open(directory));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
     }
 
-    public boolean isCurrent() {
-        try {
-            return ((DirectoryReader) searcher.getIndexReader()).isCurrent();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * @param filter restricts the documents found by the search methods, e.g. by the access-control attributes
+     */
+    public void setFilter(@Nullable Filter filter) {
+        this.filter = filter;
     }
 
     public List<EntityInfo> searchAllField(String searchTerm, int maxResults) {
@@ -46,7 +55,7 @@ public class LuceneSearcher extends Lucene {
 
         Query query = createQueryForAllFieldSearch(searchTerm);
         try {
-            TopDocs topDocs = searcher.search(query, maxResults);
+            TopDocs topDocs = searcher.search(query, filter, maxResults);
             for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
                 Document doc = searcher.doc(scoreDoc.doc);
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
@@ -68,7 +77,7 @@ public class LuceneSearcher extends Lucene {
 
         try {
             AllDocsCollector collector = new AllDocsCollector();
-            searcher.search(query, collector);
+            searcher.search(query, filter, collector);
             for (Integer docId : collector.getDocIds()) {
                 Document doc = searcher.doc(docId);
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
@@ -167,7 +176,7 @@ public class LuceneSearcher extends Lucene {
         Term term = new Term(FLD_LINKS, id.toString());
         Query termQuery = new TermQuery(term);
         try {
-            TopDocs topDocs = searcher.search(termQuery, maxResults);
+            TopDocs topDocs = searcher.search(termQuery, filter, maxResults);
             for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
                 Document doc = searcher.doc(scoreDoc.doc);
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
@@ -181,12 +190,183 @@ public class LuceneSearcher extends Lucene {
         return new ArrayList(set);
     }
 
+    /**
+     * Finds documents linked to any of the given instances in a single pass over the index segments. Postings of
+     * each instance are read until its list is full, so only the returned documents are loaded. This replaces
+     * a single query by a term lookup per instance and segment, as the query would collect all linked documents
+     * before the lists are cut. The documents are in the index order.
+     *
+     * @param maxResults    maximum number of linked documents per instance
+     * @return linked documents by the id of the instance they are linked to
+     */
+    public Map<UUID, List<EntityInfo>> searchLinksField(Collection<UUID> ids, int maxResults) {
+        Map<UUID, List<EntityInfo>> result = new HashMap<>();
+        if (ids.isEmpty())
+            return result;
+
+        Map<Integer, EntityInfo> loaded = new HashMap<>();
+        Set<UUID> remainingIds = new HashSet<>(ids);
+        try {
+            for (AtomicReaderContext context : searcher.getIndexReader().leaves()) {
+                if (remainingIds.isEmpty())
+                    break;
+                AtomicReader reader = context.reader();
+                Bits accepted = getFilterBits(context);
+                for (Iterator<UUID> it = remainingIds.iterator(); it.hasNext(); ) {
+                    UUID id = it.next();
+                    DocsEnum docsEnum = reader.termDocsEnum(new Term(FLD_LINKS, id.toString()));
+                    if (docsEnum == null)
+                        continue;
+                    List<EntityInfo> list = result.get(id);
+                    int docId;
+                    while ((list == null || list.size() < maxResults)
+                            && (docId = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (accepted != null && !accepted.get(docId))
+                            continue;
+                        int globalDocId = context.docBase + docId;
+                        EntityInfo entityInfo = loaded.get(globalDocId);
+                        if (entityInfo == null) {
+                            Document doc = searcher.doc(globalDocId, LINKS_SEARCH_FIELDS);
+                            entityInfo = new EntityInfo(doc.getField(FLD_ENTITY).stringValue(),
+                                    UUID.fromString(doc.getField(FLD_ID).stringValue()), null, true);
+                            loaded.put(globalDocId, entityInfo);
+                        }
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            result.put(id, list);
+                        }
+                        if (!list.contains(entityInfo))
+                            list.add(entityInfo);
+                    }
+                    if (list != null && list.size() >= maxResults)
+                        it.remove();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return documents of the segment passing the {@link #filter}, null if there is no filter. Deleted documents
+     * are not excluded, the postings skip them.
+     */
+    @Nullable
+    protected Bits getFilterBits(AtomicReaderContext context) throws IOException {
+        if (filter == null)
+            return null;
+        int maxDoc = context.reader().maxDoc();
+        // without accepted docs a caching filter returns its cached bit set as is
+        DocIdSet docIdSet = filter.getDocIdSet(context, null);
+        if (docIdSet == null)
+            return new Bits.MatchNoBits(maxDoc);
+        Bits bits = docIdSet.bits();
+        if (bits != null)
+            return bits;
+        FixedBitSet bitSet = new FixedBitSet(maxDoc);
+        DocIdSetIterator iterator = docIdSet.iterator();
+        if (iterator != null)
+            bitSet.or(iterator);
+        return bitSet;
+    }
+
+    /**
+     * Finds documents of the given entities linked to any of the given instances by a single query.
+     *
+     * @return linked documents by the id of the instance they are linked to
+     */
+    public Map<UUID, List<EntityInfo>> searchLinksField(Collection<UUID> ids, List<String> entityNames) {
+        Map<UUID, List<EntityInfo>> result = new HashMap<>();
+        if (ids.isEmpty())
+            return result;
+
+        Map<String, UUID> idsByString = new HashMap<>();
+        for (UUID id : ids) {
+            idsByString.put(id.toString(), id);
+        }
+        Query query = createQueryForLinksFieldSearch(idsByString.keySet(), entityNames);
+        try {
+            AllDocsCollector collector = new AllDocsCollector();
+            searcher.search(query, filter, collector);
+            List<Integer> docIds = collector.getDocIds();
+            Collections.sort(docIds);
+            for (Integer docId : docIds) {
+                Document doc = searcher.doc(docId, LINKS_SEARCH_FIELDS);
+                String entityName = doc.getField(FLD_ENTITY).stringValue();
+                UUID entityId = UUID.fromString(doc.getField(FLD_ID).stringValue());
+                EntityInfo entityInfo = new EntityInfo(entityName, entityId, null, true);
+                // the links field tells which of the instances the document is linked to
+                for (String link : StringUtils.split(doc.getField(FLD_LINKS).stringValue())) {
+                    UUID id = idsByString.get(link);
+                    if (id == null)
+                        continue;
+                    List<EntityInfo> list = result.get(id);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        result.put(id, list);
+                    }
+                    if (!list.contains(entityInfo))
+                        list.add(entityInfo);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return instance names stored in the index by instance id. Instances indexed without the name are absent
+     */
+    public Map<UUID, String> searchCaptions(Collection<UUID> ids) {
+        Map<UUID, String> result = new HashMap<>();
+        if (ids.isEmpty())
+            return result;
+
+        List<Term> terms = new ArrayList<>(ids.size());
+        for (UUID id : ids) {
+            terms.add(new Term(FLD_ID, id.toString()));
+        }
+        try {
+            AllDocsCollector collector = new AllDocsCollector();
+            searcher.search(new ConstantScoreQuery(new TermsFilter(terms)), collector);
+            for (Integer docId : collector.getDocIds()) {
+                Document doc = searcher.doc(docId, CAPTION_SEARCH_FIELDS);
+                IndexableField captionField = doc.getField(FLD_CAPTION);
+                if (captionField != null)
+                    result.put(UUID.fromString(doc.getField(FLD_ID).stringValue()), captionField.stringValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    protected Query createQueryForLinksFieldSearch(Collection<String> ids, List<String> entityNames) {
+        List<Term> terms = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            terms.add(new Term(FLD_LINKS, id));
+        }
+        Query idsQuery = new ConstantScoreQuery(new TermsFilter(terms));
+
+        BooleanQuery query = new BooleanQuery();
+        BooleanQuery entityNamesQuery = new BooleanQuery();
+        for (String entityName : entityNames) {
+            Term term = new Term(FLD_ENTITY, entityName);
+            entityNamesQuery.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+        }
+        query.add(idsQuery, BooleanClause.Occur.MUST);
+        query.add(entityNamesQuery, BooleanClause.Occur.MUST);
+        return query;
+    }
+
     public List<EntityInfo> searchLinksField(UUID id, List<String> entityNames) {
         Set<EntityInfo> set = new LinkedHashSet<>();
         Query query = createQueryForLinksFieldSearch(id, entityNames);
         try {
             AllDocsCollector collector = new AllDocsCollector();
-            searcher.search(query, collector);
+            searcher.search(query, filter, collector);
             for (Integer docId : collector.getDocIds()) {
                 Document doc = searcher.doc(docId);
                 String entityName = doc.getField(FLD_ENTITY).stringValue();
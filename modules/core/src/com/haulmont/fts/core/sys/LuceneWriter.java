@@ -10,6 +10,7 @@ import com.haulmont.fts.core.sys.morphology.MultiMorphologyAnalyzer;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.index.IndexDeletionPolicy;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
@@ -27,36 +28,60 @@ public class LuceneWriter extends Lucene {
 
     protected IndexWriter writer;
 
-    public LuceneWriter(Directory directory) {
+    public LuceneWriter(Directory directory, IndexWriter writer) {
         super(directory);
-        writer = createWriter(directory);
+        this.writer = writer;
     }
 
     public static IndexWriter createWriter(Directory directory) {
-        List<LuceneMorphology> morphologies = MorphologyNormalizer.getAvailableMorphologies();
+        return createWriter(directory, new KeepOnlyLastCommitDeletionPolicy());
+    }
 
-        Map<String, Analyzer> analyzerPerField = new HashMap<>();
-        analyzerPerField.put(FLD_LINKS, new WhitespaceAnalyzer(Version.LUCENE_44));
-        analyzerPerField.put(FLD_MORPHOLOGY_ALL, new MultiMorphologyAnalyzer(morphologies,
-                new EntityAttributeAnalyzer()));
-        PerFieldAnalyzerWrapper analyzer = new PerFieldAnalyzerWrapper(new EntityAttributeAnalyzer(), analyzerPerField);
+    /**
+     * @param deletionPolicy    policy of deleting old commits, e.g.
+     *                          {@link org.apache.lucene.index.SnapshotDeletionPolicy} to keep the commits being copied
+     */
+    public static IndexWriter createWriter(Directory directory, IndexDeletionPolicy deletionPolicy) {
         try {
-            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, analyzer);
-            config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, createAnalyzer());
+            config.setIndexDeletionPolicy(deletionPolicy);
             return new IndexWriter(directory, config);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void close() {
+    /**
+     * Creates a writer for building a new index in bulk: the directory content is replaced, documents are flushed
+     * only when the RAM buffer is full and nothing is committed until the owner commits.
+     *
+     * @param ramBufferSizeMB   size of the RAM buffer in megabytes
+     * @param threads           number of threads adding documents concurrently
+     */
+    public static IndexWriter createBulkWriter(Directory directory, double ramBufferSizeMB, int threads) {
         try {
-            writer.close();
+            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, createAnalyzer());
+            config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            config.setRAMBufferSizeMB(ramBufferSizeMB);
+            config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+            config.setMaxThreadStates(Math.max(threads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+            return new IndexWriter(directory, config);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    protected static Analyzer createAnalyzer() {
+        List<LuceneMorphology> morphologies = MorphologyNormalizer.getAvailableMorphologies();
+
+        Map<String, Analyzer> analyzerPerField = new HashMap<>();
+        analyzerPerField.put(FLD_LINKS, new WhitespaceAnalyzer(Version.LUCENE_44));
+        analyzerPerField.put(FLD_MORPHOLOGY_ALL, new MultiMorphologyAnalyzer(morphologies,
+                new EntityAttributeAnalyzer()));
+        return new PerFieldAnalyzerWrapper(new EntityAttributeAnalyzer(), analyzerPerField);
+    }
+
     public void optimize() {
         try {
             writer.forceMerge(1);
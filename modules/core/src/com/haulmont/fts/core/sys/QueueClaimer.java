@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.entity.FtsQueue;
+import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.sys.AppContext;
+import com.haulmont.cuba.core.sys.SecurityContext;
+import com.haulmont.cuba.core.sys.persistence.DbTypeConverter;
+
+import javax.annotation.Nullable;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Processes the FTS queue by several workers in parallel. Each worker claims its own slice of the queue by a locking
+ * select that skips rows locked by other workers, in a short transaction. The claimed items are remembered, so
+ * that other workers skip them after the row locks are released, and are indexed outside of the transaction.
+ * The items stay in the queue until the index is committed, if a worker fails they are claimed again next time.
+ * <p>The workers run inside one node and share its index writer.</p>
+ *
+ * @version $Id$
+ */
+public abstract class QueueClaimer {
+
+    protected ExecutorService executor;
+
+    protected String claimSql;
+
+    protected String indexingHost;
+
+    protected Persistence persistence;
+
+    /**
+     * @param claimSql      locking select returned by {@link #getClaimSql(String, boolean)}
+     * @param indexingHost  server id if the queue items are distributed between indexing hosts
+     */
+    public QueueClaimer(ExecutorService executor, String claimSql, @Nullable String indexingHost) {
+        this.executor = executor;
+        this.claimSql = claimSql;
+        this.indexingHost = indexingHost;
+        persistence = AppBeans.get(Persistence.NAME);
+    }
+
+    /**
+     * @return native locking select of queue item ids skipping locked rows, with a {@code %d} placeholder for
+     * the number of rows, or null if the database does not support it
+     */
+    @Nullable
+    public static String getClaimSql(String dbmsType, boolean useIndexingHost) {
+        String condition = "FAKE = ? and " + (useIndexingHost ? "INDEXING_HOST = ?" : "INDEXING_HOST is null");
+        // interactive lane first
+        String order = " order by case when CHANGE_TYPE = 'I' then 1 else 0 end, CREATE_TS";
+        if ("postgres".equals(dbmsType))
+            return "select ID from SYS_FTS_QUEUE where " + condition + order + " limit %d for update skip locked";
+        if ("mssql".equals(dbmsType))
+            return "select top %d ID from SYS_FTS_QUEUE with (updlock, readpast, rowlock) where " + condition + order;
+        return null;
+    }
+
+    /**
+     * Runs the workers and waits for their completion.
+     *
+     * @param uncommittedIds    ids of the queue items indexed but not removed from the queue yet
+     * @return number of processed queue items
+     */
+    public int process(int workers, final int batchSize, Collection<UUID> uncommittedIds) {
+        final Set<UUID> entitiesInProgress = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        final Set<UUID> claimedIds = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+        claimedIds.addAll(uncommittedIds);
+        final SecurityContext securityContext = AppContext.getSecurityContext();
+
+        List<Future<Integer>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    AppContext.setSecurityContext(securityContext);
+                    try {
+                        return processBatch(batchSize, entitiesInProgress, claimedIds);
+                    } finally {
+                        AppContext.setSecurityContext(null);
+                    }
+                }
+            }));
+        }
+
+        int count = 0;
+        RuntimeException failure = null;
+        for (Future<Integer> future : futures) {
+            try {
+                count += future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ?
+                            (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Queue processing interrupted", e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return count;
+    }
+
+    /**
+     * Claims a slice of the queue and processes it after the row locks are released.
+     *
+     * @param entitiesInProgress    instances being indexed by other workers. Items of these instances are left
+     *                              in the queue, so that changes of an instance are applied in order
+     * @param claimedIds            ids of the items claimed by other workers or not removed from the queue yet
+     */
+    protected int processBatch(int batchSize, Set<UUID> entitiesInProgress, Set<UUID> claimedIds) {
+        Set<UUID> claimedEntities = new HashSet<>();
+        Set<UUID> delayedEntityIds = getDelayedEntityIds();
+        try {
+            List<FtsQueue> list = new ArrayList<>();
+            Transaction tx = persistence.createTransaction();
+            try {
+                for (FtsQueue item : claim(persistence.getEntityManager(), batchSize, claimedIds)) {
+                    if (list.size() >= batchSize)
+                        break;
+                    if (delayedEntityIds.contains(item.getEntityId()) || claimedIds.contains(item.getId()))
+                        continue;
+                    if (claimedEntities.contains(item.getEntityId()) || entitiesInProgress.add(item.getEntityId())) {
+                        claimedEntities.add(item.getEntityId());
+                        // must be remembered before the row locks are released
+                        claimedIds.add(item.getId());
+                        list.add(item);
+                    }
+                }
+                tx.commit();
+            } finally {
+                tx.end();
+            }
+            return list.isEmpty() ? 0 : process(list);
+        } finally {
+            entitiesInProgress.removeAll(claimedEntities);
+        }
+    }
+
+    /**
+     * Locks and loads the oldest queue items not locked by other transactions, the interactive lane first.
+     *
+     * @param excludedIds   ids of the items to skip, more rows are selected to make up for them
+     */
+    protected List<FtsQueue> claim(EntityManager em, int maxSize, Set<UUID> excludedIds) {
+        DbTypeConverter converter = persistence.getDbTypeConverter();
+
+        Query query = em.createNativeQuery(String.format(claimSql, maxSize + excludedIds.size()));
+        try {
+            query.setParameter(1, converter.getSqlObject(Boolean.FALSE));
+            if (indexingHost != null)
+                query.setParameter(2, indexingHost);
+        } catch (SQLException e) {
+            throw new RuntimeException("Unable to set query parameter", e);
+        }
+        List<Object> ids = query.getResultList();
+        if (ids.isEmpty())
+            return Collections.emptyList();
+
+        List<UUID> uuids = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            uuids.add(id instanceof UUID ? (UUID) id : UUID.fromString(id.toString()));
+        }
+        List<FtsQueue> list = em.createQuery("select q from sys$FtsQueue q where q.id in :ids", FtsQueue.class)
+                .setParameter("ids", uuids)
+                .getResultList();
+        list = new ArrayList<>(list);
+        Collections.sort(list, new Comparator<FtsQueue>() {
+            @Override
+            public int compare(FtsQueue q1, FtsQueue q2) {
+                return q1.getCreateTs().compareTo(q2.getCreateTs());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return ids of the instances whose queue items must be left in the queue this time
+     */
+    protected Set<UUID> getDelayedEntityIds() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Indexes the claimed items. The items must be removed from the queue after the index is committed.
+     * Invoked concurrently by the workers.
+     *
+     * @return number of indexed queue items
+     */
+    protected abstract int process(List<FtsQueue> list);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reduces a sequence of queued changes to a single effective change per entity instance.
+ * Changes must be added in the order they have been queued.
+ * <ul>
+ *     <li>the last change is a deletion - {@link FtsChangeType#DELETE}</li>
+ *     <li>the instance has been inserted in this sequence and never deleted - {@link FtsChangeType#INSERT}</li>
+ *     <li>otherwise - {@link FtsChangeType#UPDATE}, which replaces a document that may already exist in the index.
+ *     So a deletion followed by an insertion is not lost.</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class QueueCoalescer {
+
+    protected Map<String, Map<UUID, FtsChangeType>> changes = new LinkedHashMap<>();
+
+    protected int count;
+
+    public void add(String entityName, UUID entityId, FtsChangeType changeType) {
+        count++;
+        Map<UUID, FtsChangeType> entityChanges = changes.get(entityName);
+        if (entityChanges == null) {
+            entityChanges = new LinkedHashMap<>();
+            changes.put(entityName, entityChanges);
+        }
+        FtsChangeType prevChangeType = entityChanges.get(entityId);
+        entityChanges.put(entityId, merge(prevChangeType, changeType));
+    }
+
+    protected FtsChangeType merge(FtsChangeType prevChangeType, FtsChangeType changeType) {
+        if (prevChangeType == null || FtsChangeType.DELETE.equals(changeType))
+            return changeType;
+        if (FtsChangeType.INSERT.equals(prevChangeType) && !FtsChangeType.DELETE.equals(changeType))
+            return FtsChangeType.INSERT;
+        return FtsChangeType.UPDATE;
+    }
+
+    /**
+     * @return effective changes grouped by entity name, in the order of the first change of each instance
+     */
+    public Map<String, Map<UUID, FtsChangeType>> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return number of added changes
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of effective changes
+     */
+    public int getCoalescedCount() {
+        int result = 0;
+        for (Map<UUID, FtsChangeType> entityChanges : changes.values()) {
+            result += entityChanges.size();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Counts consecutive failures of indexing entity instances taken from the queue. After each failure the instance
+ * is retried with an exponentially growing delay, its queue items are skipped until then.
+ * <p>The counters are kept in memory, the failures saved by {@link DeadLetterStore} are restored after a restart
+ * by {@link #restore(UUID, int, long, long)}.</p>
+ *
+ * @version $Id$
+ */
+public class QueueRetryTracker {
+
+    protected static final long MAX_RETRY_DELAY = 3600000;
+
+    protected static class Failure {
+        int attempts;
+        long nextAttemptTime;
+    }
+
+    protected Map<UUID, Failure> failures = new HashMap<>();
+
+    /**
+     * Registers a failed attempt.
+     *
+     * @param retryDelay    delay in milliseconds after the first failure, doubled after each next one
+     * @return number of consecutive failed attempts
+     */
+    public synchronized int failed(UUID entityId, long now, long retryDelay) {
+        Failure failure = failures.get(entityId);
+        if (failure == null) {
+            failure = new Failure();
+            failures.put(entityId, failure);
+        }
+        failure.attempts++;
+        failure.nextAttemptTime = getNextAttemptTime(failure.attempts, now, retryDelay);
+        return failure.attempts;
+    }
+
+    /**
+     * Restores the failed attempts counted before a restart.
+     *
+     * @param failedAt  time of the last failure
+     */
+    public synchronized void restore(UUID entityId, int attempts, long failedAt, long retryDelay) {
+        Failure failure = new Failure();
+        failure.attempts = attempts;
+        failure.nextAttemptTime = getNextAttemptTime(attempts, failedAt, retryDelay);
+        failures.put(entityId, failure);
+    }
+
+    protected long getNextAttemptTime(int attempts, long failedAt, long retryDelay) {
+        long delay = retryDelay << Math.min(attempts - 1, 30);
+        return failedAt + Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+    /**
+     * Forgets the failures of the instance after it has been indexed or given up.
+     *
+     * @return whether the instance has failed before
+     */
+    public synchronized boolean reset(UUID entityId) {
+        return failures.remove(entityId) != null;
+    }
+
+    /**
+     * @return ids of the instances that must not be retried yet
+     */
+    public synchronized Set<UUID> getDelayedIds(long now) {
+        Set<UUID> ids = new HashSet<>();
+        for (Map.Entry<UUID, Failure> entry : failures.entrySet()) {
+            if (entry.getValue().nextAttemptTime > now)
+                ids.add(entry.getKey());
+        }
+        return ids;
+    }
+
+    public synchronized int getCount() {
+        return failures.size();
+    }
+}
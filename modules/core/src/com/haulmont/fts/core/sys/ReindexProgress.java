@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DurationFormatUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Checkpointed progress of the asynchronous reindexing, stored in a properties file so that reindexing
+ * resumes after a restart. For each entity waiting for reindexing the following is kept:
+ * <ul>
+ *     <li>keyset cursor - the last processed instance id. Instances are enqueued in the order of ids,
+ *     so the next batch starts right after the cursor</li>
+ *     <li>number of instances at the moment reindexing was requested</li>
+ *     <li>numbers of processed and enqueued instances</li>
+ *     <li>time of processing the first batch</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class ReindexProgress {
+
+    private static Log log = LogFactory.getLog(ReindexProgress.class);
+
+    protected static final String ENTITIES = "entities";
+    protected static final String LAST_ID_PREFIX = "lastId.";
+    protected static final String TOTAL_PREFIX = "total.";
+    protected static final String PROCESSED_PREFIX = "processed.";
+    protected static final String ENQUEUED_PREFIX = "enqueued.";
+    protected static final String START_TIME_PREFIX = "startTime.";
+
+    protected File file;
+
+    protected Properties properties = new Properties();
+
+    public ReindexProgress(File file) {
+        this.file = file;
+        load();
+    }
+
+    protected void load() {
+        if (!file.exists())
+            return;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            properties.load(stream);
+        } catch (IOException e) {
+            log.warn("Unable to load reindexing progress from " + file + ": " + e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Writes the progress to the file, replacing it only when the new content has been written completely.
+     */
+    public synchronized void save() {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        OutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tmpFile);
+            properties.store(stream, null);
+            stream.close();
+            stream = null;
+
+            if (file.exists() && !file.delete())
+                throw new IOException("Unable to delete " + file);
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to save reindexing progress", e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+            FileUtils.deleteQuietly(tmpFile);
+        }
+    }
+
+    /**
+     * @return entities waiting for reindexing, in the order of requests
+     */
+    public synchronized List<String> getEntities() {
+        String value = properties.getProperty(ENTITIES);
+        if (StringUtils.isBlank(value))
+            return new ArrayList<>();
+        return new ArrayList<>(Arrays.asList(value.split(",")));
+    }
+
+    /**
+     * Registers the entity for reindexing from the beginning.
+     *
+     * @param total number of instances to process, used to estimate the remaining time
+     */
+    public synchronized void start(String entityName, long total) {
+        remove(entityName);
+        List<String> entities = getEntities();
+        entities.add(entityName);
+        properties.setProperty(ENTITIES, StringUtils.join(entities, ","));
+        properties.setProperty(TOTAL_PREFIX + entityName, String.valueOf(total));
+    }
+
+    /**
+     * Moves the cursor of the entity after a processed batch.
+     */
+    public synchronized void advance(String entityName, UUID lastId, int processed, int enqueued) {
+        if (properties.getProperty(START_TIME_PREFIX + entityName) == null)
+            properties.setProperty(START_TIME_PREFIX + entityName, String.valueOf(System.currentTimeMillis()));
+        properties.setProperty(LAST_ID_PREFIX + entityName, lastId.toString());
+        properties.setProperty(PROCESSED_PREFIX + entityName, String.valueOf(getProcessed(entityName) + processed));
+        properties.setProperty(ENQUEUED_PREFIX + entityName, String.valueOf(getEnqueued(entityName) + enqueued));
+    }
+
+    /**
+     * Removes the entity and its progress.
+     */
+    public synchronized void remove(String entityName) {
+        List<String> entities = getEntities();
+        if (entities.remove(entityName))
+            properties.setProperty(ENTITIES, StringUtils.join(entities, ","));
+        for (String prefix : new String[]{LAST_ID_PREFIX, TOTAL_PREFIX, PROCESSED_PREFIX, ENQUEUED_PREFIX,
+                START_TIME_PREFIX}) {
+            properties.remove(prefix + entityName);
+        }
+    }
+
+    /**
+     * @return id of the last processed instance or null if reindexing of the entity has not started yet
+     */
+    @Nullable
+    public synchronized UUID getLastId(String entityName) {
+        String value = properties.getProperty(LAST_ID_PREFIX + entityName);
+        return value != null ? UUID.fromString(value) : null;
+    }
+
+    public synchronized long getTotal(String entityName) {
+        return getLong(TOTAL_PREFIX + entityName);
+    }
+
+    public synchronized long getProcessed(String entityName) {
+        return getLong(PROCESSED_PREFIX + entityName);
+    }
+
+    public synchronized long getEnqueued(String entityName) {
+        return getLong(ENQUEUED_PREFIX + entityName);
+    }
+
+    /**
+     * @return time of processing the first batch or 0 if processing has not started yet
+     */
+    public synchronized long getStartTime(String entityName) {
+        return getLong(START_TIME_PREFIX + entityName);
+    }
+
+    protected long getLong(String key) {
+        String value = properties.getProperty(key);
+        return value != null ? Long.parseLong(value) : 0;
+    }
+
+    /**
+     * @return human-readable progress of each entity with the estimated remaining time
+     */
+    public synchronized String printProgress() {
+        List<String> entities = getEntities();
+        if (entities.isEmpty())
+            return "No entities are waiting for reindexing";
+
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+        long totalRemaining = 0;
+        long totalProcessed = 0;
+        long totalElapsed = 0;
+        for (String entityName : entities) {
+            long total = getTotal(entityName);
+            long processed = getProcessed(entityName);
+            long startTime = getStartTime(entityName);
+            long remaining = Math.max(total - processed, 0);
+            totalRemaining += remaining;
+
+            sb.append(entityName).append(": ").append(processed).append(" of ").append(total).append(" processed, ")
+                    .append(getEnqueued(entityName)).append(" enqueued");
+            if (startTime > 0 && processed > 0) {
+                long elapsed = now - startTime;
+                totalProcessed += processed;
+                totalElapsed += elapsed;
+                sb.append(", ETA ").append(formatDuration(remaining * elapsed / processed));
+            }
+            sb.append("\n");
+        }
+        sb.append("Total ETA: ");
+        if (totalProcessed > 0)
+            sb.append(formatDuration(totalRemaining * totalElapsed / totalProcessed));
+        else
+            sb.append("unknown");
+        return sb.toString();
+    }
+
+    protected String formatDuration(long millis) {
+        return DurationFormatUtils.formatDuration(millis, "HH:mm:ss");
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/**
+ * Range of instance ids of an entity reindexed as a unit of work. The range is claimed by a worker for
+ * a limited time (lease), the worker periodically saves the last indexed id, so a range of a failed worker
+ * is continued by another one after the lease expires.
+ *
+ * @version $Id$
+ */
+public class ReindexRange {
+
+    public enum Status {
+        NEW, RUNNING, DONE, FAILED
+    }
+
+    protected static final String SEPARATOR = "|";
+
+    protected String entityName;
+
+    protected int index;
+
+    protected UUID fromId;
+
+    protected UUID toId;
+
+    protected UUID lastId;
+
+    protected Status status = Status.NEW;
+
+    protected String owner;
+
+    protected long leaseUntil;
+
+    protected int attempts;
+
+    protected long processed;
+
+    /**
+     * Optimistic lock version of the stored range.
+     */
+    protected int version;
+
+    /**
+     * @param fromId    id after which the range starts, null for the first range
+     * @param toId      last id of the range inclusive, null for the last range
+     */
+    public ReindexRange(String entityName, int index, @Nullable UUID fromId, @Nullable UUID toId) {
+        this.entityName = entityName;
+        this.index = index;
+        this.fromId = fromId;
+        this.toId = toId;
+    }
+
+    /**
+     * @return id after which the next chunk of the range starts, null to start from the first instance
+     */
+    @Nullable
+    public UUID getNextFromId() {
+        return lastId != null ? lastId : fromId;
+    }
+
+    /**
+     * @return whether the range can be claimed by a worker at the given moment
+     */
+    public boolean isClaimable(long now, int maxAttempts) {
+        switch (status) {
+            case NEW:
+                return true;
+            case RUNNING:
+                return leaseUntil < now && attempts < maxAttempts;
+            case FAILED:
+                return attempts < maxAttempts;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return status of the range at the given moment, FAILED for a range whose worker has stopped on the last
+     * attempt without saving the result
+     */
+    public Status getStatus(long now, int maxAttempts) {
+        if (status == Status.RUNNING && leaseUntil < now && attempts >= maxAttempts)
+            return Status.FAILED;
+        return status;
+    }
+
+    /**
+     * Makes the range claimable again with all attempts available. The range continues from its last saved
+     * progress.
+     */
+    public void reset() {
+        status = Status.NEW;
+        owner = null;
+        leaseUntil = 0;
+        attempts = 0;
+    }
+
+    public String encode() {
+        return StringUtils.join(new Object[]{
+                fromId != null ? fromId : "",
+                toId != null ? toId : "",
+                lastId != null ? lastId : "",
+                status,
+                owner != null ? owner : "",
+                leaseUntil,
+                attempts,
+                processed
+        }, SEPARATOR);
+    }
+
+    public static ReindexRange decode(String entityName, int index, String value) {
+        String[] parts = StringUtils.splitPreserveAllTokens(value, SEPARATOR);
+        if (parts.length != 8)
+            throw new IllegalArgumentException("Invalid reindex range: " + value);
+
+        ReindexRange range = new ReindexRange(entityName, index, parseUuid(parts[0]), parseUuid(parts[1]));
+        range.lastId = parseUuid(parts[2]);
+        range.status = Status.valueOf(parts[3]);
+        range.owner = StringUtils.trimToNull(parts[4]);
+        range.leaseUntil = Long.parseLong(parts[5]);
+        range.attempts = Integer.parseInt(parts[6]);
+        range.processed = Long.parseLong(parts[7]);
+        return range;
+    }
+
+    @Nullable
+    protected static UUID parseUuid(String value) {
+        return StringUtils.isEmpty(value) ? null : UUID.fromString(value);
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Nullable
+    public UUID getFromId() {
+        return fromId;
+    }
+
+    @Nullable
+    public UUID getToId() {
+        return toId;
+    }
+
+    @Nullable
+    public UUID getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(@Nullable UUID lastId) {
+        this.lastId = lastId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    @Nullable
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public long getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(long leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(long processed) {
+        this.processed = processed;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return entityName + "#" + index + "(" + fromId + ", " + toId + "] " + status;
+    }
+}
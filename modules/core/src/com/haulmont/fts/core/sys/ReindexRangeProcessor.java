@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.TypedQuery;
+import com.haulmont.cuba.core.entity.Entity;
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.global.View;
+import com.haulmont.cuba.core.sys.AppContext;
+import com.haulmont.cuba.core.sys.SecurityContext;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reindexes entities by ranges of ids stored in {@link ReindexRangeStore}. The ranges are claimed with a lease by
+ * the workers of the node writing the index, a range whose lease has expired, e.g. after a restart of the node, is
+ * continued by another worker from the last committed checkpoint.
+ *
+ * @version $Id$
+ */
+public abstract class ReindexRangeProcessor {
+
+    private static Log log = LogFactory.getLog(ReindexRangeProcessor.class);
+
+    protected ReindexRangeStore store;
+
+    protected Map<String, EntityDescr> descriptions;
+
+    protected Persistence persistence;
+
+    protected int chunkSize = 100;
+
+    protected int commitDocCount = 1000;
+
+    protected long leaseTime = 600000;
+
+    protected int maxAttempts = 3;
+
+    public ReindexRangeProcessor(ReindexRangeStore store, Map<String, EntityDescr> descriptions) {
+        this.store = store;
+        this.descriptions = descriptions;
+        persistence = AppBeans.get(Persistence.NAME);
+    }
+
+    /**
+     * @param chunkSize number of instances loaded and indexed at once
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param commitDocCount    number of instances indexed between commits, the progress is saved on each commit
+     */
+    public void setCommitDocCount(int commitDocCount) {
+        this.commitDocCount = commitDocCount;
+    }
+
+    /**
+     * @param leaseTime lease time of a claimed range in milliseconds, extended on each commit
+     * @param maxAttempts   number of attempts to process a failed range
+     */
+    public void setLease(long leaseTime, int maxAttempts) {
+        this.leaseTime = leaseTime;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Splits the instances of the entity into ranges of the given size and saves them to the store, replacing
+     * the previous ranges of the entity.
+     *
+     * @return number of ranges
+     */
+    public int partition(String entityName, int rangeSize) {
+        // the range boundaries are found by walking the id index with an offset of the range size
+        List<ReindexRange> ranges = new ArrayList<>();
+        UUID fromId = null;
+        while (true) {
+            UUID toId;
+            Transaction tx = persistence.createTransaction();
+            try {
+                TypedQuery<UUID> query = persistence.getEntityManager().createQuery("select e.id from " + entityName
+                        + " e" + (fromId == null ? "" : " where e.id > :fromId") + " order by e.id", UUID.class);
+                if (fromId != null)
+                    query.setParameter("fromId", fromId);
+                query.setFirstResult(rangeSize - 1);
+                query.setMaxResults(1);
+                List<UUID> ids = query.getResultList();
+                toId = ids.isEmpty() ? null : ids.get(0);
+                tx.commit();
+            } finally {
+                tx.end();
+            }
+            ranges.add(new ReindexRange(entityName, ranges.size(), fromId, toId));
+            if (toId == null)
+                break;
+            fromId = toId;
+        }
+        store.save(entityName, ranges);
+        log.info("Reindexing of " + entityName + " is split into " + ranges.size() + " ranges");
+        return ranges.size();
+    }
+
+    /**
+     * Claims and processes the ranges by the given number of workers on the executor until no range is left,
+     * waiting for the completion.
+     *
+     * @param owner identifier of this node, the claimed ranges are marked by it and the worker number
+     * @return number of indexed instances
+     */
+    public int process(ExecutorService executor, int workers, String owner) {
+        final SecurityContext securityContext = AppContext.getSecurityContext();
+        List<Future<Integer>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final String workerOwner = owner + "/" + i;
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    AppContext.setSecurityContext(securityContext);
+                    try {
+                        int count = 0;
+                        ReindexRange range;
+                        while (!Thread.currentThread().isInterrupted()
+                                && (range = store.claim(workerOwner, leaseTime, maxAttempts)) != null) {
+                            count += processRange(range);
+                        }
+                        return count;
+                    } finally {
+                        AppContext.setSecurityContext(null);
+                    }
+                }
+            }));
+        }
+
+        int count = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                count += future.get();
+            } catch (ExecutionException e) {
+                log.error("Error processing reindex ranges", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Indexes the claimed range by chunks. The progress is saved only after the index is committed, so a range
+     * continued by another worker does not miss uncommitted documents, and the lease is extended at the same time.
+     *
+     * @return number of indexed instances
+     */
+    protected int processRange(ReindexRange range) {
+        String entityName = range.getEntityName();
+        log.debug("Processing reindex range " + range);
+
+        if (descriptions.get(entityName) == null) {
+            log.warn("FTS configuration not found for " + entityName + ", range " + range + " is skipped");
+            range.setStatus(ReindexRange.Status.DONE);
+            store.update(range);
+            return 0;
+        }
+
+        UUID checkpointId = range.getLastId();
+        long checkpointProcessed = range.getProcessed();
+        int count = 0;
+        int uncommitted = 0;
+        try {
+            LuceneIndexer indexer = createIndexer();
+            View view = indexer.createView(entityName);
+            while (true) {
+                UUID fromId = range.getNextFromId();
+                List<String> conditions = new ArrayList<>(2);
+                if (fromId != null)
+                    conditions.add("e.id > :fromId");
+                if (range.getToId() != null)
+                    conditions.add("e.id <= :toId");
+
+                List<Entity> entities = new ArrayList<>(chunkSize);
+                int size;
+                Transaction tx = persistence.createTransaction();
+                try {
+                    Query query = persistence.getEntityManager().createQuery("select e from " + entityName + " e"
+                            + (conditions.isEmpty() ? "" : " where " + StringUtils.join(conditions, " and "))
+                            + " order by e.id");
+                    if (fromId != null)
+                        query.setParameter("fromId", fromId);
+                    if (range.getToId() != null)
+                        query.setParameter("toId", range.getToId());
+                    query.setView(view);
+                    query.setMaxResults(chunkSize);
+                    List<Entity> list = query.getResultList();
+                    for (Entity entity : list) {
+                        range.setLastId((UUID) entity.getId());
+                        if (accept(entityName, entity))
+                            entities.add(entity);
+                    }
+                    size = list.size();
+                    tx.commit();
+                } finally {
+                    tx.end();
+                }
+
+                if (!entities.isEmpty()) {
+                    // an interactive change may have indexed the instance already
+                    Map<UUID, IndexingException> errors =
+                            indexer.indexLoadedEntities(entityName, entities, FtsChangeType.UPDATE);
+                    if (!errors.isEmpty()) {
+                        log.warn(errors.size() + " instances of " + entityName + " have not been indexed: "
+                                + errors.keySet());
+                        failed(entityName, errors);
+                    }
+                    count += entities.size() - errors.size();
+                }
+                range.setProcessed(range.getProcessed() + size);
+                uncommitted += size;
+
+                boolean finished = size < chunkSize;
+                if (finished || uncommitted >= commitDocCount) {
+                    commit();
+                    uncommitted = 0;
+                    checkpointId = range.getLastId();
+                    checkpointProcessed = range.getProcessed();
+                    if (finished)
+                        range.setStatus(ReindexRange.Status.DONE);
+                    else
+                        range.setLeaseUntil(System.currentTimeMillis() + leaseTime);
+                    if (!store.update(range)) {
+                        log.warn("Lease of reindex range " + range + " is lost");
+                        return count;
+                    }
+                }
+                if (finished) {
+                    log.debug("Reindex range " + range + " is processed");
+                    return count;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error processing reindex range " + range, e);
+            range.setLastId(checkpointId);
+            range.setProcessed(checkpointProcessed);
+            range.setStatus(ReindexRange.Status.FAILED);
+            store.update(range);
+            return count;
+        }
+    }
+
+    /**
+     * Makes a failed range claimable again, it continues from its last saved progress.
+     *
+     * @return false if there is no such range
+     * @throws IllegalStateException if the range is being processed or is done
+     */
+    public boolean reset(String entityName, int index) {
+        ReindexRange range = store.find(entityName, index);
+        if (range == null)
+            return false;
+        ReindexRange.Status status = range.getStatus(System.currentTimeMillis(), maxAttempts);
+        if (status == ReindexRange.Status.RUNNING)
+            throw new IllegalStateException("Reindex range " + range + " is being processed by " + range.getOwner());
+        if (status == ReindexRange.Status.DONE)
+            throw new IllegalStateException("Reindex range " + range + " is already processed");
+        range.reset();
+        if (!store.update(range))
+            throw new IllegalStateException("Reindex range " + range + " has been changed by a worker");
+        log.info("Reindex range " + range + " is reset");
+        return true;
+    }
+
+    /**
+     * @return counts of the ranges by entity and status, followed by the failed ranges. A range whose worker has
+     * stopped on the last attempt is reported as failed
+     */
+    public String print() {
+        List<ReindexRange> ranges = store.load();
+        if (ranges.isEmpty())
+            return "No reindex ranges";
+
+        long now = System.currentTimeMillis();
+        Map<String, Map<ReindexRange.Status, Integer>> counts = new TreeMap<>();
+        Map<String, Long> processed = new HashMap<>();
+        StringBuilder failed = new StringBuilder();
+        for (ReindexRange range : ranges) {
+            Map<ReindexRange.Status, Integer> entityCounts = counts.get(range.getEntityName());
+            if (entityCounts == null) {
+                entityCounts = new EnumMap<>(ReindexRange.Status.class);
+                counts.put(range.getEntityName(), entityCounts);
+            }
+            ReindexRange.Status status = range.getStatus(now, maxAttempts);
+            Integer value = entityCounts.get(status);
+            entityCounts.put(status, value == null ? 1 : value + 1);
+            Long entityProcessed = processed.get(range.getEntityName());
+            processed.put(range.getEntityName(),
+                    (entityProcessed == null ? 0 : entityProcessed) + range.getProcessed());
+            if (status == ReindexRange.Status.FAILED)
+                failed.append(range).append(", attempts: ").append(range.getAttempts()).append("\n");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Map<ReindexRange.Status, Integer>> entry : counts.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ")
+                    .append(processed.get(entry.getKey())).append(" instances processed\n");
+        }
+        sb.append(failed);
+        return sb.toString();
+    }
+
+    /**
+     * @return whether the loaded instance must be indexed
+     */
+    protected boolean accept(String entityName, Entity entity) {
+        return true;
+    }
+
+    /**
+     * Invoked by a worker when instances of a range have not been indexed. The range is not processed again, so
+     * the instances must be retried in another way.
+     */
+    protected void failed(String entityName, Map<UUID, IndexingException> errors) {
+    }
+
+    /**
+     * Creates an indexer writing to the shared index writer, invoked by each worker.
+     */
+    protected abstract LuceneIndexer createIndexer();
+
+    /**
+     * Commits the shared index writer.
+     */
+    protected abstract void commit();
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.EntityManager;
+import com.haulmont.cuba.core.Persistence;
+import com.haulmont.cuba.core.Query;
+import com.haulmont.cuba.core.Transaction;
+import com.haulmont.cuba.core.entity.Config;
+import com.haulmont.cuba.core.global.AppBeans;
+import com.haulmont.cuba.core.global.Metadata;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Stores reindex ranges in the {@code sys$Config} table, one record per range. The ranges belong to the index
+ * receiving the documents and are shared by the workers writing to it: a range is claimed and updated only if its
+ * record version has not changed since it was read, so a range is processed by a single worker at a time.
+ *
+ * @version $Id$
+ */
+public class ReindexRangeStore {
+
+    protected static final String PREFIX = "fts.reindexRange.";
+
+    protected String prefix;
+
+    protected Persistence persistence;
+
+    protected Metadata metadata;
+
+    /**
+     * @param scope name of the index the ranges belong to, i.e. of the node writing it
+     */
+    public ReindexRangeStore(String scope) {
+        prefix = PREFIX + scope + ".";
+        persistence = AppBeans.get(Persistence.NAME);
+        metadata = AppBeans.get(Metadata.NAME);
+    }
+
+    /**
+     * Replaces the ranges of the entity.
+     */
+    public void save(String entityName, List<ReindexRange> ranges) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            EntityManager em = persistence.getEntityManager();
+            delete(em, entityName);
+            for (ReindexRange range : ranges) {
+                Config config = metadata.create(Config.class);
+                config.setName(getName(range));
+                config.setValue(range.encode());
+                em.persist(config);
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    public void delete(String entityName) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            delete(persistence.getEntityManager(), entityName);
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+    }
+
+    protected void delete(EntityManager em, String entityName) {
+        Query query = em.createQuery("delete from sys$Config c where c.name like :name");
+        query.setParameter("name", prefix + entityName + ".%");
+        query.executeUpdate();
+    }
+
+    /**
+     * @return all ranges ordered by entity and index
+     */
+    public List<ReindexRange> load() {
+        List<ReindexRange> ranges = new ArrayList<>();
+        Transaction tx = persistence.createTransaction();
+        try {
+            Query query = persistence.getEntityManager().createQuery(
+                    "select c.name, c.value, c.version from sys$Config c where c.name like :name");
+            query.setParameter("name", prefix + "%");
+            List<Object[]> list = query.getResultList();
+            for (Object[] row : list) {
+                String name = (String) row[0];
+                // "_" in the pattern matches any character
+                if (!name.startsWith(prefix))
+                    continue;
+                int dot = name.lastIndexOf('.');
+                ReindexRange range = ReindexRange.decode(name.substring(prefix.length(), dot),
+                        Integer.parseInt(name.substring(dot + 1)), (String) row[1]);
+                range.setVersion(row[2] != null ? ((Number) row[2]).intValue() : 0);
+                ranges.add(range);
+            }
+            tx.commit();
+        } finally {
+            tx.end();
+        }
+
+        Collections.sort(ranges, new Comparator<ReindexRange>() {
+            @Override
+            public int compare(ReindexRange r1, ReindexRange r2) {
+                int result = r1.getEntityName().compareTo(r2.getEntityName());
+                return result != 0 ? result : Integer.compare(r1.getIndex(), r2.getIndex());
+            }
+        });
+        return ranges;
+    }
+
+    /**
+     * @return the range or null if it does not exist
+     */
+    @Nullable
+    public ReindexRange find(String entityName, int index) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            Query query = persistence.getEntityManager().createQuery(
+                    "select c.value, c.version from sys$Config c where c.name = :name");
+            query.setParameter("name", getName(entityName, index));
+            List<Object[]> list = query.getResultList();
+            tx.commit();
+            if (list.isEmpty())
+                return null;
+            ReindexRange range = ReindexRange.decode(entityName, index, (String) list.get(0)[0]);
+            range.setVersion(list.get(0)[1] != null ? ((Number) list.get(0)[1]).intValue() : 0);
+            return range;
+        } finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * Claims the first available range.
+     *
+     * @param owner         worker identifier
+     * @param leaseTime     time in milliseconds the range is reserved for the worker
+     * @param maxAttempts   maximum number of attempts to process a range
+     * @return claimed range or null if there are no ranges available
+     */
+    @Nullable
+    public ReindexRange claim(String owner, long leaseTime, int maxAttempts) {
+        long now = System.currentTimeMillis();
+        for (ReindexRange range : load()) {
+            if (!range.isClaimable(now, maxAttempts))
+                continue;
+            range.setStatus(ReindexRange.Status.RUNNING);
+            range.setOwner(owner);
+            range.setLeaseUntil(now + leaseTime);
+            range.setAttempts(range.getAttempts() + 1);
+            if (update(range))
+                return range;
+        }
+        return null;
+    }
+
+    /**
+     * Saves the range if it has not been changed by another worker since it was read.
+     *
+     * @return false if the range has been changed, i.e. the lease is lost
+     */
+    public boolean update(ReindexRange range) {
+        Transaction tx = persistence.createTransaction();
+        try {
+            Query query = persistence.getEntityManager().createQuery(
+                    "update sys$Config c set c.value = :value, c.version = c.version + 1 " +
+                            "where c.name = :name and c.version = :version");
+            query.setParameter("value", range.encode());
+            query.setParameter("name", getName(range));
+            query.setParameter("version", range.getVersion());
+            int count = query.executeUpdate();
+            tx.commit();
+            if (count == 0)
+                return false;
+            range.setVersion(range.getVersion() + 1);
+            return true;
+        } finally {
+            tx.end();
+        }
+    }
+
+    protected String getName(ReindexRange range) {
+        return getName(range.getEntityName(), range.getIndex());
+    }
+
+    protected String getName(String entityName, int index) {
+        return prefix + entityName + "." + index;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.fts.global.SearchResult;
+import org.apache.commons.lang.SerializationUtils;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of search results. Results are stored serialized, so a returned result is a private copy of the
+ * caller and the size of the cache is known exactly. All entries belong to one version of the index reader:
+ * a request for a newer version empties the cache, the versions of an index only grow. When the total size exceeds
+ * the limit, least recently used entries are removed.
+ *
+ * @version $Id$
+ */
+public class SearchResultCache {
+
+    protected long maxSize;
+
+    protected long size;
+
+    protected long indexVersion = -1;
+
+    protected final Map<String, byte[]> results = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    public SearchResultCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param indexVersion version of the index reader the result is requested for
+     * @return cached result or null if the result has not been cached for the version yet
+     */
+    @Nullable
+    public SearchResult get(long indexVersion, String key) {
+        byte[] bytes = null;
+        synchronized (this) {
+            // a searcher acquired before the last reopen gets nothing
+            if (indexVersion >= this.indexVersion) {
+                setIndexVersion(indexVersion);
+                bytes = results.get(key);
+            }
+        }
+        if (bytes == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (SearchResult) SerializationUtils.deserialize(bytes);
+    }
+
+    /**
+     * @param indexVersion version of the index reader the result is built from
+     */
+    public void put(long indexVersion, String key, SearchResult result) {
+        byte[] bytes = SerializationUtils.serialize(result);
+        if (bytes.length > maxSize)
+            return;
+        synchronized (this) {
+            // the result of a reader replaced while it was being built is not cached
+            if (indexVersion < this.indexVersion)
+                return;
+            setIndexVersion(indexVersion);
+            byte[] old = results.put(key, bytes);
+            size += bytes.length - (old != null ? old.length : 0);
+            for (Iterator<byte[]> it = results.values().iterator(); size > maxSize && it.hasNext(); ) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    protected void setIndexVersion(long indexVersion) {
+        if (indexVersion != this.indexVersion) {
+            results.clear();
+            size = 0;
+            this.indexVersion = indexVersion;
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        size = 0;
+        indexVersion = -1;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return total size in bytes of the cached results
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return results.size();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.Entity;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.BooleanFilter;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Access-control attributes indexed as terms of the {@link Lucene#FLD_SECURITY} field and the filters restricting
+ * search results by them. The attributes are defined as {@code entityName.propertyPath=sessionAttribute} entries,
+ * e.g. {@code sales$Order.department=departmentId}: a user having constraints on the entity finds only instances
+ * whose property value equals the value (or one of the values) of the user session attribute.
+ * <p>Instances of the restricted entities must be reindexed after the definition changes.</p>
+ * <p>Filters are cached per set of allowed values, so users with the same attributes share a filter and its
+ * per-segment bit sets.</p>
+ *
+ * @version $Id$
+ */
+public class SecurityFilters {
+
+    private static Log log = LogFactory.getLog(SecurityFilters.class);
+
+    protected static final int MAX_CACHED_FILTERS = 100;
+
+    protected static final String SEPARATOR = "|";
+
+    protected final String definition;
+
+    protected final Map<String, String> properties = new LinkedHashMap<>();
+
+    protected final Map<String, String> sessionAttributes = new HashMap<>();
+
+    protected final Map<String, Filter> filters = new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+            return size() > MAX_CACHED_FILTERS;
+        }
+    };
+
+    /**
+     * @param definition entries separated by commas or whitespace
+     */
+    public SecurityFilters(String definition) {
+        this.definition = definition;
+        for (String entry : StringUtils.split(definition, ", \t\r\n")) {
+            int dot = entry.indexOf('.');
+            int eq = entry.indexOf('=');
+            if (dot <= 0 || eq <= dot + 1 || eq == entry.length() - 1) {
+                log.warn("Invalid security attribute definition: " + entry);
+                continue;
+            }
+            String entityName = entry.substring(0, dot);
+            properties.put(entityName, entry.substring(dot + 1, eq));
+            sessionAttributes.put(entityName, entry.substring(eq + 1));
+        }
+    }
+
+    public String getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return property paths of the access-control attributes by entity name
+     */
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @return name of the user session attribute the property of the entity is compared with
+     */
+    @Nullable
+    public String getSessionAttribute(String entityName) {
+        return sessionAttributes.get(entityName);
+    }
+
+    /**
+     * @return text of the term indexed for the given value of the access-control attribute of the entity
+     */
+    public static String getTermText(String entityName, @Nullable Object value) {
+        if (value instanceof Entity)
+            value = ((Entity) value).getId();
+        return entityName + SEPARATOR + (value != null ? value.toString() : "");
+    }
+
+    /**
+     * @param allowedValues values of the access-control attributes allowed to the user, by the restricted entity.
+     *                      Instances of entities missing in the map are not filtered
+     * @return filter passing the allowed instances, or null if the user is not restricted
+     */
+    @Nullable
+    public Filter getFilter(Map<String, Collection<?>> allowedValues) {
+        if (allowedValues.isEmpty())
+            return null;
+
+        List<Term> entityTerms = new ArrayList<>();
+        for (String entityName : allowedValues.keySet()) {
+            entityTerms.add(new Term(Lucene.FLD_ENTITY, entityName));
+        }
+        SortedSet<String> valueTexts = new TreeSet<>();
+        for (Map.Entry<String, Collection<?>> entry : allowedValues.entrySet()) {
+            for (Object value : entry.getValue()) {
+                // a null value matches nothing as the constraint would
+                if (value != null)
+                    valueTexts.add(getTermText(entry.getKey(), value));
+            }
+        }
+        String key = new TreeSet<>(allowedValues.keySet()) + "#" + valueTexts;
+
+        synchronized (filters) {
+            Filter filter = filters.get(key);
+            if (filter == null) {
+                filter = new CachingWrapperFilter(createFilter(entityTerms, valueTexts));
+                filters.put(key, filter);
+            }
+            return filter;
+        }
+    }
+
+    /**
+     * @param entityTerms terms of the entities the user is restricted on
+     */
+    protected Filter createFilter(List<Term> entityTerms, Collection<String> valueTexts) {
+        BooleanFilter filter = new BooleanFilter();
+        // documents of all other entities. Instances of the restricted entities indexed without the access-control
+        // attribute, e.g. before it was defined, are not found until reindexed
+        BooleanFilter otherEntitiesFilter = new BooleanFilter();
+        otherEntitiesFilter.add(new TermsFilter(entityTerms), BooleanClause.Occur.MUST_NOT);
+        filter.add(otherEntitiesFilter, BooleanClause.Occur.SHOULD);
+        if (!valueTexts.isEmpty()) {
+            List<Term> valueTerms = new ArrayList<>(valueTexts.size());
+            for (String text : valueTexts) {
+                valueTerms.add(new Term(Lucene.FLD_SECURITY, text));
+            }
+            filter.add(new TermsFilter(valueTerms), BooleanClause.Occur.SHOULD);
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+
+package com.haulmont.fts.core.sys;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Creates searchers warmed up by a query of the entity names and by a query of the most frequent terms of every
+ * searched field, so that the term dictionaries of the new segments and the postings of the popular words are loaded
+ * before the first searches. To keep warming short, the frequent terms are chosen among the first
+ * {@link #SCANNED_TERMS} terms of a field, and the postings of other words are loaded by the first searches.
+ * The searcher manager makes the new searcher available only after it has been warmed up.
+ *
+ * @version $Id$
+ */
+public class WarmingSearcherFactory extends SearcherFactory {
+
+    private static Log log = LogFactory.getLog(WarmingSearcherFactory.class);
+
+    protected static final String[] WARMED_FIELDS = {
+            Lucene.FLD_ALL, Lucene.FLD_MORPHOLOGY_ALL, Lucene.FLD_LINKS
+    };
+
+    protected static final int SCANNED_TERMS = 10000;
+
+    protected static final int WARMED_TERMS = 20;
+
+    protected Collection<String> entityNames;
+
+    /**
+     * @param entityNames   names of the indexed entities
+     */
+    public WarmingSearcherFactory(Collection<String> entityNames) {
+        this.entityNames = entityNames;
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        long start = System.currentTimeMillis();
+        for (String entityName : entityNames) {
+            searcher.search(new TermQuery(new Term(Lucene.FLD_ENTITY, entityName)), 1);
+        }
+        for (String field : WARMED_FIELDS) {
+            BooleanQuery query = new BooleanQuery();
+            for (BytesRef term : getFrequentTerms(reader, field)) {
+                query.add(new TermQuery(new Term(field, term)), BooleanClause.Occur.SHOULD);
+            }
+            if (query.clauses().size() > 0)
+                searcher.search(query, 10);
+        }
+        log.debug("Searcher warmed up in " + (System.currentTimeMillis() - start) + " ms");
+        return searcher;
+    }
+
+    /**
+     * @return up to {@link #WARMED_TERMS} terms of the field having the highest document frequency
+     */
+    protected Collection<BytesRef> getFrequentTerms(IndexReader reader, String field) throws IOException {
+        PriorityQueue<TermFreq> queue = new PriorityQueue<>(WARMED_TERMS + 1, new Comparator<TermFreq>() {
+            @Override
+            public int compare(TermFreq t1, TermFreq t2) {
+                return Integer.compare(t1.docFreq, t2.docFreq);
+            }
+        });
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator(null);
+            BytesRef term;
+            for (int i = 0; i < SCANNED_TERMS && (term = termsEnum.next()) != null; i++) {
+                int docFreq = termsEnum.docFreq();
+                if (queue.size() < WARMED_TERMS || docFreq > queue.peek().docFreq) {
+                    queue.add(new TermFreq(BytesRef.deepCopyOf(term), docFreq));
+                    if (queue.size() > WARMED_TERMS)
+                        queue.poll();
+                }
+            }
+        }
+        Collection<BytesRef> result = new ArrayList<>(queue.size());
+        for (TermFreq termFreq : queue) {
+            result.add(termFreq.term);
+        }
+        return result;
+    }
+
+    protected static class TermFreq {
+
+        protected final BytesRef term;
+
+        protected final int docFreq;
+
+        protected TermFreq(BytesRef term, int docFreq) {
+            this.term = term;
+            this.docFreq = docFreq;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+
+public class IndexReplicatorTest extends TestCase {
+
+    private File baseDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        baseDir = new File(System.getProperty("java.io.tmpdir"), "fts-replication-test");
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    public void testReplicate() throws Exception {
+        File primaryDir = new File(baseDir, "primary");
+        File publishDir = new File(baseDir, "publish");
+        File replicaDir = new File(baseDir, "replica");
+
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, new WhitespaceAnalyzer(Version.LUCENE_44));
+        config.setIndexDeletionPolicy(new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(primaryDir), config);
+        try {
+            IndexPublisher publisher = new IndexPublisher(publishDir);
+            IndexReplicator replicator = new IndexReplicator(publishDir);
+
+            assertFalse(publisher.publish(writer, primaryDir));
+
+            addDocument(writer, "1");
+            writer.commit();
+            assertTrue(publisher.publish(writer, primaryDir));
+            assertFalse(publisher.publish(writer, primaryDir));
+
+            assertTrue(replicator.replicate(replicaDir));
+            assertFalse(replicator.replicate(replicaDir));
+            assertEquals(1, numDocs(replicaDir));
+
+            IndexRevision previous = IndexRevision.read(publishDir);
+            addDocument(writer, "2");
+            writer.commit();
+            assertTrue(publisher.publish(writer, primaryDir));
+            // a replica may still be copying the previous revision
+            for (String name : previous.getFiles().keySet()) {
+                assertTrue(name, new File(publishDir, name).exists());
+            }
+            assertTrue(replicator.replicate(replicaDir));
+            assertEquals(2, numDocs(replicaDir));
+
+            // recreated index
+            writer.deleteAll();
+            addDocument(writer, "3");
+            writer.commit();
+            publisher.reset();
+            assertTrue(publisher.publish(writer, primaryDir));
+            assertTrue(replicator.replicate(replicaDir));
+            assertEquals(1, numDocs(replicaDir));
+            assertFalse(new File(baseDir, "replica-replica").exists());
+            assertFalse(new File(baseDir, "replica-old").exists());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void addDocument(IndexWriter writer, String id) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.YES));
+        writer.addDocument(doc);
+    }
+
+    private int numDocs(File dir) throws Exception {
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(dir));
+        try {
+            return reader.numDocs();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.cuba.core.entity.FtsChangeType;
+import junit.framework.TestCase;
+
+import java.util.Map;
+import java.util.UUID;
+
+public class QueueCoalescerTest extends TestCase {
+
+    private static final String ENTITY = "test$Entity";
+
+    public void testSingleChanges() {
+        UUID id1 = UUID.randomUUID();
+        UUID id2 = UUID.randomUUID();
+        UUID id3 = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        coalescer.add(ENTITY, id1, FtsChangeType.INSERT);
+        coalescer.add(ENTITY, id2, FtsChangeType.UPDATE);
+        coalescer.add(ENTITY, id3, FtsChangeType.DELETE);
+
+        Map<UUID, FtsChangeType> changes = coalescer.getChanges().get(ENTITY);
+        assertEquals(FtsChangeType.INSERT, changes.get(id1));
+        assertEquals(FtsChangeType.UPDATE, changes.get(id2));
+        assertEquals(FtsChangeType.DELETE, changes.get(id3));
+        assertEquals(3, coalescer.getCoalescedCount());
+    }
+
+    public void testRepeatedUpdates() {
+        UUID id = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        for (int i = 0; i < 10; i++) {
+            coalescer.add(ENTITY, id, FtsChangeType.UPDATE);
+        }
+
+        assertEquals(FtsChangeType.UPDATE, coalescer.getChanges().get(ENTITY).get(id));
+        assertEquals(10, coalescer.getCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    public void testInsertThenUpdate() {
+        UUID id = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        coalescer.add(ENTITY, id, FtsChangeType.INSERT);
+        coalescer.add(ENTITY, id, FtsChangeType.UPDATE);
+
+        assertEquals(FtsChangeType.INSERT, coalescer.getChanges().get(ENTITY).get(id));
+    }
+
+    public void testDeleteIsLast() {
+        UUID id = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        coalescer.add(ENTITY, id, FtsChangeType.INSERT);
+        coalescer.add(ENTITY, id, FtsChangeType.UPDATE);
+        coalescer.add(ENTITY, id, FtsChangeType.DELETE);
+
+        assertEquals(FtsChangeType.DELETE, coalescer.getChanges().get(ENTITY).get(id));
+    }
+
+    public void testDeleteThenInsert() {
+        UUID id = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        coalescer.add(ENTITY, id, FtsChangeType.DELETE);
+        coalescer.add(ENTITY, id, FtsChangeType.INSERT);
+
+        // the old document must be replaced, not duplicated
+        assertEquals(FtsChangeType.UPDATE, coalescer.getChanges().get(ENTITY).get(id));
+
+        UUID id2 = UUID.randomUUID();
+        coalescer.add(ENTITY, id2, FtsChangeType.INSERT);
+        coalescer.add(ENTITY, id2, FtsChangeType.DELETE);
+        coalescer.add(ENTITY, id2, FtsChangeType.INSERT);
+
+        assertEquals(FtsChangeType.UPDATE, coalescer.getChanges().get(ENTITY).get(id2));
+    }
+
+    public void testEntitiesAreSeparated() {
+        UUID id = UUID.randomUUID();
+
+        QueueCoalescer coalescer = new QueueCoalescer();
+        coalescer.add(ENTITY, id, FtsChangeType.UPDATE);
+        coalescer.add("test$Other", id, FtsChangeType.DELETE);
+
+        assertEquals(FtsChangeType.UPDATE, coalescer.getChanges().get(ENTITY).get(id));
+        assertEquals(FtsChangeType.DELETE, coalescer.getChanges().get("test$Other").get(id));
+        assertEquals(2, coalescer.getCoalescedCount());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import junit.framework.TestCase;
+
+import java.util.UUID;
+
+public class QueueRetryTrackerTest extends TestCase {
+
+    public void testBackoff() {
+        QueueRetryTracker tracker = new QueueRetryTracker();
+        UUID id = UUID.randomUUID();
+
+        assertEquals(1, tracker.failed(id, 0, 1000));
+        assertTrue(tracker.getDelayedIds(999).contains(id));
+        assertFalse(tracker.getDelayedIds(1000).contains(id));
+
+        assertEquals(2, tracker.failed(id, 1000, 1000));
+        assertTrue(tracker.getDelayedIds(2999).contains(id));
+        assertFalse(tracker.getDelayedIds(3000).contains(id));
+
+        assertEquals(3, tracker.failed(id, 3000, 1000));
+        assertTrue(tracker.getDelayedIds(6999).contains(id));
+
+        assertTrue(tracker.reset(id));
+        assertFalse(tracker.reset(id));
+        assertEquals(0, tracker.getCount());
+        assertEquals(1, tracker.failed(id, 7000, 1000));
+    }
+
+    public void testRestore() {
+        QueueRetryTracker tracker = new QueueRetryTracker();
+        UUID id = UUID.randomUUID();
+
+        tracker.restore(id, 2, 1000, 1000);
+        assertTrue(tracker.getDelayedIds(2999).contains(id));
+        assertFalse(tracker.getDelayedIds(3000).contains(id));
+        assertEquals(3, tracker.failed(id, 3000, 1000));
+    }
+
+    public void testMaxDelay() {
+        QueueRetryTracker tracker = new QueueRetryTracker();
+        UUID id = UUID.randomUUID();
+        for (int i = 0; i < 100; i++) {
+            tracker.failed(id, 0, 1000);
+        }
+        assertTrue(tracker.getDelayedIds(QueueRetryTracker.MAX_RETRY_DELAY - 1).contains(id));
+        assertFalse(tracker.getDelayedIds(QueueRetryTracker.MAX_RETRY_DELAY).contains(id));
+    }
+}
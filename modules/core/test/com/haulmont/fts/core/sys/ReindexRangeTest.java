@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import junit.framework.TestCase;
+
+import java.util.UUID;
+
+public class ReindexRangeTest extends TestCase {
+
+    public void testEncodeDecode() {
+        UUID fromId = UUID.randomUUID();
+        UUID lastId = UUID.randomUUID();
+
+        ReindexRange range = new ReindexRange("test$Entity", 3, fromId, null);
+        range.setLastId(lastId);
+        range.setStatus(ReindexRange.Status.RUNNING);
+        range.setOwner("localhost:8080-core/1");
+        range.setLeaseUntil(12345L);
+        range.setAttempts(2);
+        range.setProcessed(1000);
+
+        ReindexRange decoded = ReindexRange.decode("test$Entity", 3, range.encode());
+        assertEquals(fromId, decoded.getFromId());
+        assertNull(decoded.getToId());
+        assertEquals(lastId, decoded.getLastId());
+        assertEquals(ReindexRange.Status.RUNNING, decoded.getStatus());
+        assertEquals("localhost:8080-core/1", decoded.getOwner());
+        assertEquals(12345L, decoded.getLeaseUntil());
+        assertEquals(2, decoded.getAttempts());
+        assertEquals(1000, decoded.getProcessed());
+        assertEquals(lastId, decoded.getNextFromId());
+    }
+
+    public void testClaimable() {
+        ReindexRange range = new ReindexRange("test$Entity", 0, null, UUID.randomUUID());
+        assertTrue(range.isClaimable(1000, 3));
+        assertNull(range.getNextFromId());
+
+        range.setStatus(ReindexRange.Status.RUNNING);
+        range.setAttempts(1);
+        range.setLeaseUntil(2000);
+        assertFalse(range.isClaimable(1000, 3));
+        assertTrue(range.isClaimable(3000, 3));
+
+        range.setStatus(ReindexRange.Status.FAILED);
+        assertTrue(range.isClaimable(1000, 3));
+        range.setAttempts(3);
+        assertFalse(range.isClaimable(1000, 3));
+
+        range.setStatus(ReindexRange.Status.DONE);
+        assertFalse(range.isClaimable(3000, 3));
+    }
+
+    public void testExpiredLastAttempt() {
+        ReindexRange range = new ReindexRange("test$Entity", 0, null, null);
+        range.setLastId(UUID.randomUUID());
+        range.setStatus(ReindexRange.Status.RUNNING);
+        range.setAttempts(3);
+        range.setLeaseUntil(2000);
+        assertEquals(ReindexRange.Status.RUNNING, range.getStatus(1000, 3));
+        assertEquals(ReindexRange.Status.FAILED, range.getStatus(3000, 3));
+        assertFalse(range.isClaimable(3000, 3));
+
+        range.reset();
+        assertTrue(range.isClaimable(3000, 3));
+        assertEquals(0, range.getAttempts());
+        assertEquals(range.getLastId(), range.getNextFromId());
+    }
+}
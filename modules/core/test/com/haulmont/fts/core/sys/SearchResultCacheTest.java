@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import com.haulmont.fts.global.SearchResult;
+import junit.framework.TestCase;
+
+import java.util.UUID;
+
+public class SearchResultCacheTest extends TestCase {
+
+    public void testIndexVersion() {
+        SearchResultCache cache = new SearchResultCache(1024 * 1024);
+        SearchResult result = createResult("foo");
+        cache.put(1, "foo", result);
+
+        SearchResult cachedResult = cache.get(1, "foo");
+        assertNotNull(cachedResult);
+        assertNotSame(result, cachedResult);
+        assertEquals(1, cachedResult.getEntries("test$Entity").size());
+        assertNull(cache.get(1, "bar"));
+
+        // a searcher acquired before the reopen neither gets nor drops the entries of the newer version
+        cache.put(2, "foo", result);
+        assertNull(cache.get(1, "foo"));
+        cache.put(1, "bar", result);
+        assertNull(cache.get(2, "bar"));
+        assertNotNull(cache.get(2, "foo"));
+
+        assertNull(cache.get(3, "foo"));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    public void testEviction() {
+        SearchResultCache cache = new SearchResultCache(1024 * 1024);
+        cache.put(1, "probe", createResult("probe"));
+        long entrySize = cache.getSize();
+
+        cache = new SearchResultCache(entrySize * 2 + entrySize / 2);
+        cache.put(1, "a", createResult("a"));
+        cache.put(1, "b", createResult("b"));
+        assertNotNull(cache.get(1, "a"));
+        cache.put(1, "c", createResult("c"));
+
+        assertEquals(2, cache.getCount());
+        assertNotNull(cache.get(1, "a"));
+        assertNull(cache.get(1, "b"));
+        assertNotNull(cache.get(1, "c"));
+        assertTrue(cache.getSize() <= entrySize * 2 + entrySize / 2);
+    }
+
+    private SearchResult createResult(String searchTerm) {
+        SearchResult result = new SearchResult(searchTerm);
+        UUID id = UUID.randomUUID();
+        result.addEntry("test$Entity", new SearchResult.Entry(id, "Entity " + searchTerm));
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2008-2015 Haulmont. All rights reserved.
+ * Use is subject to license terms, see http://www.cuba-platform.com/license for details.
+ */
+package com.haulmont.fts.core.sys;
+
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.util.*;
+
+public class SecurityFiltersTest extends TestCase {
+
+    public void testDefinition() {
+        SecurityFilters filters = new SecurityFilters("test$Order.department=departmentId, invalid,\n"
+                + "test$Contract.owner.group=groupId");
+        assertEquals(2, filters.getProperties().size());
+        assertEquals("department", filters.getProperties().get("test$Order"));
+        assertEquals("owner.group", filters.getProperties().get("test$Contract"));
+        assertEquals("groupId", filters.getSessionAttribute("test$Contract"));
+        assertNull(filters.getSessionAttribute("test$Customer"));
+    }
+
+    public void testFilter() throws Exception {
+        SecurityFilters filters = new SecurityFilters("test$Order.department=departmentId,"
+                + "test$Contract.group=groupId");
+
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_44, new WhitespaceAnalyzer(Version.LUCENE_44));
+        IndexWriter writer = new IndexWriter(directory, config);
+        addDocument(writer, "test$Order", "1", "d1");
+        addDocument(writer, "test$Order", "2", "d2");
+        addDocument(writer, "test$Order", "3", null);
+        addDocument(writer, "test$Contract", "4", "g1");
+        addDocument(writer, "test$Customer", "5", null);
+        // indexed before the attribute was defined
+        addDocument(writer, "test$Order", "6", null, false);
+        writer.close();
+
+        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(directory));
+
+        assertNull(filters.getFilter(Collections.<String, Collection<?>>emptyMap()));
+
+        Map<String, Collection<?>> allowedValues = new HashMap<>();
+        allowedValues.put("test$Order", Arrays.asList("d1", null));
+        Filter filter = filters.getFilter(allowedValues);
+        assertEquals(new HashSet<>(Arrays.asList("1", "4", "5")), search(searcher, filter));
+        assertSame(filter, filters.getFilter(new HashMap<>(allowedValues)));
+
+        allowedValues.put("test$Contract", Collections.singletonList("g2"));
+        assertEquals(new HashSet<>(Arrays.asList("1", "5")), search(searcher, filters.getFilter(allowedValues)));
+    }
+
+    private void addDocument(IndexWriter writer, String entityName, String id, String value) throws Exception {
+        addDocument(writer, entityName, id, value, !"test$Customer".equals(entityName));
+    }
+
+    private void addDocument(IndexWriter writer, String entityName, String id, String value, boolean secured)
+            throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField(Lucene.FLD_ENTITY, entityName, Field.Store.YES));
+        doc.add(new StringField(Lucene.FLD_ID, id, Field.Store.YES));
+        if (secured)
+            doc.add(new StringField(Lucene.FLD_SECURITY, SecurityFilters.getTermText(entityName, value),
+                    Field.Store.NO));
+        writer.addDocument(doc);
+    }
+
+    private Set<String> search(IndexSearcher searcher, Filter filter) throws Exception {
+        AllDocsCollector collector = new AllDocsCollector();
+        searcher.search(new MatchAllDocsQuery(), filter, collector);
+        Set<String> ids = new HashSet<>();
+        for (Integer docId : collector.getDocIds()) {
+            ids.add(searcher.doc(docId).get(Lucene.FLD_ID));
+        }
+        return ids;
+    }
+}